@@ -1,6 +1,8 @@
 package com.twmacinta.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Fast implementation of RSA's MD5 hash generator in Java JDK Beta-2 or higher.
@@ -89,6 +91,17 @@ import java.io.*;
  * The second option is to call
  * com.twmacinta.util.MD5.initNativeLibrary(true) before any MD5 objects
  * are constructed.
+ * <p>
+ * Besides the native library and the Java code, hashes can also be
+ * computed by java.security.MessageDigest, which modern HotSpot JVMs
+ * compile to specialized instructions.  Which of these "backends" is
+ * fastest depends on the JVM and the machine, so the first time an MD5
+ * object is constructed a short calibration times each available
+ * backend and picks the fastest.  The calibration can be skipped by
+ * setting the system property "com.twmacinta.util.MD5.BACKEND" to
+ * "java", "native" or "jdk", or by calling setBackend() before any MD5
+ * objects are constructed (e.g. with the result of an earlier
+ * calibration).
  *
  * @author Santeri Paavolainen <sjpaavol@cc.helsinki.fi>
  * @author Timothy W Macinta (twm@alum.mit.edu) (optimizations and bug fixes)
@@ -107,6 +120,16 @@ public class MD5 {
      **/
     MD5State finals;
     
+    /*
+     * Scratch space, so that hashing allocates nothing once an object
+     * has been constructed (and can be reused with Init()).
+     */
+    private final MD5State fin_state = new MD5State();
+    private final int[] decode_buf = new int[16];
+    private final byte[] bits = new byte[8];
+    private final byte[] one_byte = new byte[1];
+    private byte[] native_buf;
+    
     /** 
      * Padding for Final()
      **/
@@ -119,13 +142,77 @@ public class MD5 {
     private static boolean native_lib_loaded = false;
     private static boolean native_lib_init_pending = true;
     
+    /**
+     * Backend that computes hashes in Java.
+     **/
+    public static final int BACKEND_JAVA = 0;
+    
+    /**
+     * Backend that computes hashes with the native library.
+     **/
+    public static final int BACKEND_NATIVE = 1;
+    
+    /**
+     * Backend that computes hashes with java.security.MessageDigest.
+     **/
+    public static final int BACKEND_JDK = 2;
+    
+    private static final String[] BACKEND_NAMES = {"java", "native", "jdk"};
+    
+    /*
+     * Only ever assigned once a backend has been chosen, never while
+     * one is being timed, so every object sees a backend that is done.
+     */
+    private static volatile int backend = BACKEND_JAVA;
+    private static volatile boolean backend_select_pending = true;
+    
+    /**
+     * Backend this object computes with, taken from the selected one at
+     * the time of the last Init(), so it can't change in mid-hash.
+     **/
+    private int use_backend;
+    
+    /**
+     * MessageDigest doing the work when the JDK backend was selected
+     * at the time of the last Init(), null otherwise.
+     **/
+    private java.security.MessageDigest jdk_digest;
+    
+    /**
+     * The hash Final() last got from a copy of jdk_digest, which is
+     * only valid while jdk_final_valid is set.  Any Update() clears it.
+     **/
+    private final byte[] jdk_final = new byte[16];
+    private boolean jdk_final_valid;
+    
     /**
      * Initialize MD5 internal state (object can be reused just by
      * calling Init() after every Final()
      **/
     public synchronized void Init () {
-        state = new MD5State();
+        Init(backend);
+    }
+    
+    private void Init (int b) {
+        use_backend = b;
+        jdk_final_valid = false;
+        if (state == null) {
+            state = new MD5State();
+        } else {
+            state.reset();
+        }
         finals = null;
+        if (b != BACKEND_JDK) {
+            jdk_digest = null;
+        } else if (jdk_digest != null) {
+            jdk_digest.reset();
+        } else {
+            try {
+                jdk_digest = java.security.MessageDigest.getInstance("MD5");
+            } catch (java.security.NoSuchAlgorithmException e) {
+                // fall back to the Java code
+            }
+        }
     }
     
     /**
@@ -133,9 +220,18 @@ public class MD5 {
      **/
     public MD5 () {
         if (native_lib_init_pending) _initNativeLibrary();
+        if (backend_select_pending) _selectBackend();
         this.Init();
     }
     
+    /**
+     * Constructs an object that computes with the given backend,
+     * whichever one is selected.
+     **/
+    private MD5 (int b) {
+        this.Init(b);
+    }
+    
     /**
      * Initialize class, and update hash with ob.toString()
      *
@@ -226,7 +322,33 @@ public class MD5 {
     
     private native void Transform_native (int[] state, byte buffer[], int shift, int length);
     
+    /**
+     * Same as Decode(byte[], int, int[]), but reads the block straight
+     * out of a (possibly direct) buffer, whatever its byte order.
+     **/
+    private void Decode (ByteBuffer buffer, int shift, int[] out) {
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            for (int i = 0; i < 16; i++, shift += 4) {
+                out[i] = buffer.getInt(shift);
+            }
+        } else {
+            for (int i = 0; i < 16; i++, shift += 4) {
+                out[i] = Integer.reverseBytes(buffer.getInt(shift));
+            }
+        }
+    }
+    
     private void Transform (MD5State state, byte buffer[], int shift, int[] decode_buf) {
+        Decode(buffer, shift, decode_buf);
+        Transform(state, decode_buf);
+    }
+    
+    private void Transform (MD5State state, ByteBuffer buffer, int shift, int[] decode_buf) {
+        Decode(buffer, shift, decode_buf);
+        Transform(state, decode_buf);
+    }
+    
+    private void Transform (MD5State state, int[] decode_buf) {
         int
             a = state.state[0],
             b = state.state[1],
@@ -234,8 +356,6 @@ public class MD5 {
             d = state.state[3],
             x[] = decode_buf;
         
-        Decode(buffer, shift, decode_buf);
-        
         /* Round 1 */
         a += ((b & c) | (~b & d)) + x[ 0] + 0xd76aa478; /* 1 */
         a = ((a << 7) | (a >>> 25)) + b;
@@ -407,6 +527,12 @@ public class MD5 {
         int index, partlen, i, start;
         finals = null;
         
+        if (jdk_digest != null && stat == state) {
+            jdk_final_valid = false;
+            jdk_digest.update(buffer, offset, length);
+            return;
+        }
+        
         /* Length can be told to be shorter, but not inter */
         if ((length - offset)> buffer.length)
             length = buffer.length - offset;
@@ -422,7 +548,7 @@ public class MD5 {
             
             // update state (using native method) to reflect input
             
-            if (native_lib_loaded) {
+            if (use_backend == BACKEND_NATIVE) {
                 if (partlen == 64) {
                     partlen = 0;
                 } else {
@@ -452,7 +578,6 @@ public class MD5 {
             // update state (using only Java) to reflect input
             
             else {
-                int[] decode_buf = new int[16];
                 if (partlen == 64) {
                     partlen = 0;
                 } else {
@@ -478,6 +603,88 @@ public class MD5 {
         }
     }
     
+    /**
+     * Updates hash with the remaining bytes of the given buffer, advancing
+     * the buffer's position to its limit.  Direct and memory mapped
+     * buffers are hashed in place, their contents are never copied onto
+     * the heap (unless the native library is in use, which can only hash
+     * byte arrays).
+     *
+     * @param stat   Which state is updated
+     * @param buffer Buffer of bytes to be hashed
+     */
+    public void Update (MD5State stat, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int length = buffer.remaining();
+            Update(stat, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            return;
+        }
+        
+        int index, partlen, length;
+        finals = null;
+        
+        if (jdk_digest != null && stat == state) {
+            jdk_final_valid = false;
+            jdk_digest.update(buffer);
+            return;
+        }
+        
+        length = buffer.remaining();
+        
+        /* compute number of bytes mod 64 */
+        
+        index = (int) (stat.count & 0x3f);
+        stat.count += length;
+        
+        partlen = 64 - index;
+        
+        if (length >= partlen) {
+            
+            // finish off the block left over from the last update
+            
+            if (partlen < 64) {
+                buffer.get(stat.buffer, index, partlen);
+                if (use_backend == BACKEND_NATIVE) {
+                    Transform_native(stat.state, stat.buffer, 0, 64);
+                } else {
+                    Transform(stat, stat.buffer, 0, decode_buf);
+                }
+                length -= partlen;
+            }
+            
+            int blocks = length & ~0x3f;
+            
+            if (use_backend == BACKEND_NATIVE) {
+                
+                // the native method needs an array, so copy through one
+                
+                if (native_buf == null) native_buf = new byte[65536];
+                byte[] chunk = native_buf;
+                for (int done = 0; done < blocks; done += chunk.length) {
+                    int n = Math.min(chunk.length, blocks - done);
+                    buffer.get(chunk, 0, n);
+                    Transform_native(stat.state, chunk, 0, n);
+                }
+            } else {
+                
+                // read blocks in place
+                
+                int start = buffer.position();
+                for (int i = 0; i < blocks; i += 64) {
+                    Transform(stat, buffer, start + i, decode_buf);
+                }
+                buffer.position(start + blocks);
+            }
+            
+            length -= blocks;
+            index = 0;
+        }
+        
+        /* buffer remaining input */
+        buffer.get(stat.buffer, index, length);
+    }
+    
     /* 
      * Update()s for other datatypes than byte[] also. Update(byte[], int)
      * is only the main driver.
@@ -490,6 +697,16 @@ public class MD5 {
         Update(this.state, buffer, offset, length);
     }
     
+    /**
+     * Updates hash with the remaining bytes of the given buffer
+     *
+     * @param buffer Buffer of bytes to use for updating the hash
+     * @see #Update(MD5State, ByteBuffer)
+     **/
+    public void Update (ByteBuffer buffer) {
+        Update(this.state, buffer);
+    }
+    
     public void Update (byte buffer[], int length) {
         Update(this.state, buffer, 0, length);
     }
@@ -509,10 +726,9 @@ public class MD5 {
      * @param b Single byte to update the hash
      **/
     public void Update (byte b) {
-        byte buffer[] = new byte[1];
-        buffer[0] = b;
+        one_byte[0] = b;
         
-        Update(buffer, 1);
+        Update(one_byte, 1);
     }
     
     /**
@@ -562,20 +778,15 @@ public class MD5 {
         Update((byte) (i & 0xff));
     }
     
-    private byte[] Encode (int input[], int len) {
+    private void Encode (int input[], int len, byte out[], int off) {
         int i, j;
-        byte out[];
-        
-        out = new byte[len];
         
-        for (i = j = 0; j  < len; i++, j += 4) {
+        for (i = 0, j = off; j < off + len; i++, j += 4) {
             out[j] = (byte) (input[i] & 0xff);
             out[j + 1] = (byte) ((input[i] >>> 8) & 0xff);
             out[j + 2] = (byte) ((input[i] >>> 16) & 0xff);
             out[j + 3] = (byte) ((input[i] >>> 24) & 0xff);
         }
-        
-        return out;
     }
     
     /**
@@ -587,15 +798,47 @@ public class MD5 {
      * @return Array of 16 bytes, the hash of all updated bytes
      **/
     public synchronized byte[] Final () {
-        byte bits[];
+        byte out[] = new byte[16];
+        Final(out, 0);
+        return out;
+    }
+    
+    /**
+     * Same as Final(), but writes the 16 byte hash into the given array
+     * instead of allocating a new one.  With the Java and native backends
+     * this allocates nothing at all.  With the JDK backend a copy of the
+     * MessageDigest has to be finished, which allocates, unless nothing
+     * was added since the last Final().
+     *
+     * @param out Array to write the hash into
+     * @param off Offset in out to write the hash at
+     **/
+    public synchronized void Final (byte out[], int off) {
         int index, padlen;
         MD5State fin;
         
+        if (jdk_digest != null) {
+            // MessageDigest can only be finished once, so finish a copy
+            if (!jdk_final_valid) {
+                try {
+                    ((java.security.MessageDigest) jdk_digest.clone()).digest(jdk_final, 0, 16);
+                } catch (CloneNotSupportedException | java.security.DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+                jdk_final_valid = true;
+            }
+            System.arraycopy(jdk_final, 0, out, off, 16);
+            return;
+        }
+        
         if (finals == null) {
-            fin = new MD5State(state);
+            fin = fin_state;
+            fin.copy(state);
             
-            int[] count_ints = {(int) (fin.count << 3), (int) (fin.count >> 29)};
-            bits = Encode(count_ints, 8);
+            long bitcount = fin.count << 3;
+            for (int i = 0; i < 8; i++) {
+                bits[i] = (byte) (bitcount >>> (i * 8));
+            }
             
             index = (int) (fin.count & 0x3f);
             padlen = (index < 56) ? (56 - index) : (120 - index);
@@ -607,7 +850,7 @@ public class MD5 {
             finals = fin;
         } 
         
-        return Encode(finals.state, 16);
+        Encode(finals.state, 16, out, off);
     }
     
     private static final char[] HEX_CHARS = {'0', '1', '2', '3',
@@ -631,6 +874,21 @@ public class MD5 {
         return new String(buf);
     }
     
+    /**
+     * Writes the hex representation of a hash into the given array
+     * instead of building a new String.
+     *
+     * @param hash Array of bytes to convert to hex
+     * @param out  Array to write hash.length * 2 hex characters into
+     * @param off  Offset in out to write the characters at
+     */
+    public static void asHex (byte hash[], char out[], int off) {
+        for (int i = 0, x = off; i < hash.length; i++) {
+            out[x++] = HEX_CHARS[(hash[i] >>> 4) & 0xf];
+            out[x++] = HEX_CHARS[hash[i] & 0xf];
+        }
+    }
+    
     /**
      * Returns 32-character hex representation of this objects hash
      *
@@ -665,6 +923,129 @@ public class MD5 {
         return native_lib_loaded;
     }
     
+    /**
+     * Returns the backend hashes are computed with, running the
+     * calibration first if no backend has been selected yet.
+     *
+     * @return One of BACKEND_JAVA, BACKEND_NATIVE or BACKEND_JDK
+     **/
+    public static synchronized int getBackend () {
+        if (native_lib_init_pending) _initNativeLibrary();
+        if (backend_select_pending) _selectBackend();
+        return backend;
+    }
+    
+    /**
+     * Forces hashes to be computed with the given backend.  MD5 objects
+     * that already exist keep using the backend that was selected when
+     * they were last Init()ed.
+     *
+     * @param new_backend One of BACKEND_JAVA, BACKEND_NATIVE or BACKEND_JDK
+     * @return true iff the backend is available and is now in use
+     **/
+    public static synchronized boolean setBackend (int new_backend) {
+        if (native_lib_init_pending) _initNativeLibrary();
+        if (!isBackendAvailable(new_backend)) return false;
+        backend = new_backend;
+        backend_select_pending = false;
+        return true;
+    }
+    
+    /**
+     * Convenience method for setBackend(getBackendByName(name)).
+     *
+     * @return true iff the backend is known, available and now in use
+     **/
+    public static synchronized boolean setBackend (String name) {
+        int b = getBackendByName(name);
+        return b >= 0 && setBackend(b);
+    }
+    
+    /**
+     * @return the name of the given backend, as used by the
+     *         "com.twmacinta.util.MD5.BACKEND" system property
+     **/
+    public static String getBackendName (int b) {
+        return BACKEND_NAMES[b];
+    }
+    
+    /**
+     * @return the backend with the given name, or -1 if there is none
+     **/
+    public static int getBackendByName (String name) {
+        for (int i = 0; i < BACKEND_NAMES.length; i++) {
+            if (BACKEND_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+    
+    private static boolean isBackendAvailable (int b) {
+        switch (b) {
+        case BACKEND_JAVA:
+            return true;
+        case BACKEND_NATIVE:
+            return native_lib_loaded;
+        case BACKEND_JDK:
+            try {
+                java.security.MessageDigest.getInstance("MD5");
+                return true;
+            } catch (java.security.NoSuchAlgorithmException e) {
+                return false;
+            }
+        default:
+            return false;
+        }
+    }
+    
+    private static synchronized final void _selectBackend () {
+        if (!backend_select_pending) return;
+        
+        String prop = null;
+        try {
+            prop = System.getProperty("com.twmacinta.util.MD5.BACKEND");
+        } catch (SecurityException e) {}
+        
+        int forced = prop == null ? -1 : getBackendByName(prop);
+        backend = forced >= 0 && isBackendAvailable(forced) ? forced : calibrate();
+        backend_select_pending = false;
+    }
+    
+    /**
+     * Times every available backend on a few megabytes of data and
+     * returns the fastest.  This does not change the backend in use.
+     *
+     * @return One of BACKEND_JAVA, BACKEND_NATIVE or BACKEND_JDK
+     **/
+    public static synchronized int calibrate () {
+        if (native_lib_init_pending) _initNativeLibrary();
+        
+        byte[] buf = new byte[256 * 1024];
+        for (int i = 0; i < buf.length; i++) buf[i] = (byte) (i * 31);
+        
+        int fastest = BACKEND_JAVA;
+        long fastest_time = Long.MAX_VALUE;
+        for (int b = 0; b < BACKEND_NAMES.length; b++) {
+            if (!isBackendAvailable(b)) continue;
+            
+            // best of several rounds, so the JIT gets a chance to compile
+            // the Java code before it is judged
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 12; round++) {
+                long start = System.nanoTime();
+                MD5 md5 = new MD5(b);
+                md5.Update(buf, buf.length);
+                md5.Final();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (best < fastest_time) {
+                fastest = b;
+                fastest_time = best;
+            }
+        }
+        
+        return fastest;
+    }
+    
     private static synchronized final void  _initNativeLibrary () {
         if (!native_lib_init_pending) return;
         native_lib_loaded = _loadNativeLibrary();
@@ -872,6 +1253,24 @@ public class MD5 {
         }
     }
     
+    /**
+     * Hasher getHash(Path) reads files through.
+     **/
+    private static final org.peak15.GVCLib.hashers.ContentHasher file_hasher =
+        new org.peak15.GVCLib.hashers.MD5Hasher();
+    
+    /**
+     * Calculates and returns the hash of the contents of the given file.
+     * The file is read through a FileChannel without the bytes passing
+     * through the heap: large files are memory mapped a window at a time,
+     * smaller ones are read into a direct buffer that is reused by the
+     * calling thread.  This is the same read loop every GVC hasher uses,
+     * see ContentHasher.hash(Path).
+     **/
+    public static byte[] getHash (java.nio.file.Path p) throws IOException {
+        return file_hasher.hash(p).toBytes();
+    }
+    
     /**
      * @return true iff the first 16 bytes of both hash1 and hash2 are
      *         equal;  both hash1 and hash2 are null; or either hash
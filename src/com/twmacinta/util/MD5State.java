@@ -52,27 +52,32 @@ class MD5State {
 
   public MD5State() {
     buffer = new byte[64];
-    count = 0;
     state = new int[4];
     
-    state[0] = 0x67452301;
-    state[1] = 0xefcdab89;
-    state[2] = 0x98badcfe;
-    state[3] = 0x10325476;
-
+    reset();
   }
 
   /** Create this State as a copy of another state */
   public MD5State (MD5State from) {
     this();
     
-    int i;
-    
-    for (i = 0; i < buffer.length; i++)
-      this.buffer[i] = from.buffer[i];
+    copy(from);
+  }
+  
+  /** Return this State to the initial state, without allocating */
+  void reset () {
+    count = 0;
     
-    for (i = 0; i < state.length; i++)
-      this.state[i] = from.state[i];
+    state[0] = 0x67452301;
+    state[1] = 0xefcdab89;
+    state[2] = 0x98badcfe;
+    state[3] = 0x10325476;
+  }
+  
+  /** Make this State a copy of another state, without allocating */
+  void copy (MD5State from) {
+    System.arraycopy(from.buffer, 0, this.buffer, 0, buffer.length);
+    System.arraycopy(from.state, 0, this.state, 0, state.length);
     
     this.count = from.count;
   }
@@ -0,0 +1,81 @@
+package org.peak15.GVCLib;
+
+/**
+ * Splits data into chunks at points chosen by its content (FastCDC), so an edit to a large file
+ * only changes the chunks around it, while the chunks before and after it stay the same.
+ * A gear hash is rolled over the bytes, and a chunk ends where enough of its high bits are zero.
+ * Chunks are kept near the average size by asking for more zero bits before it and fewer after,
+ * and no cut point is looked for in a chunk's first MIN_SIZE bytes.
+ *
+ * Cut points have to be the same on every machine forever, or chunks stop deduplicating,
+ * so none of this can ever be changed without a new manifest version.
+ */
+public final class Chunker {
+	/**
+	 * Smallest chunk, except for the last chunk of a file.
+	 */
+	public static final int MIN_SIZE = 64 * 1024;
+	
+	/**
+	 * Size chunks are aimed at.
+	 */
+	public static final int AVG_SIZE = 256 * 1024;
+	
+	/**
+	 * Largest chunk, a chunk is cut here if no cut point was found.
+	 */
+	public static final int MAX_SIZE = 1024 * 1024;
+	
+	private static final int AVG_BITS = 18;
+	
+	// Each byte is shifted out of the hash after 64 more, so the high bits depend on the most bytes.
+	private static final long MASK_SMALL = ((1L << (AVG_BITS + 2)) - 1) << (64 - AVG_BITS - 2);
+	private static final long MASK_LARGE = ((1L << (AVG_BITS - 2)) - 1) << (64 - AVG_BITS + 2);
+	
+	private static final long[] GEAR = new long[256];
+	static {
+		// SplitMix64 from a fixed seed, so the table is the same everywhere.
+		long seed = 0x4756434368756e6bL;
+		for(int i = 0; i < GEAR.length; i++) {
+			seed += 0x9e3779b97f4a7c15L;
+			long z = seed;
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+	
+	private Chunker() {
+	}
+	
+	/**
+	 * Find the end of the chunk starting at the beginning of some data.
+	 * @param b Array holding the data.
+	 * @param off Offset the chunk starts at.
+	 * @param len Bytes available, at least MAX_SIZE unless they are the rest of the file.
+	 * @return Length of the chunk.
+	 */
+	public static int cut(byte[] b, int off, int len) {
+		if(len <= MIN_SIZE) {
+			return len;
+		}
+		
+		int end = Math.min(len, MAX_SIZE);
+		int normal = Math.min(len, AVG_SIZE);
+		long h = 0;
+		int i = MIN_SIZE;
+		for(; i < normal; i++) {
+			h = (h << 1) + GEAR[b[off + i] & 0xff];
+			if((h & MASK_SMALL) == 0) {
+				return i + 1;
+			}
+		}
+		for(; i < end; i++) {
+			h = (h << 1) + GEAR[b[off + i] & 0xff];
+			if((h & MASK_LARGE) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+}
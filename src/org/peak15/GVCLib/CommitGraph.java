@@ -0,0 +1,313 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shape of the repository's history, stored in .GVC/commit-graph.
+ * Holds a small fixed size record for every revision, so history can be walked and queried
+ * without loading any revisions. Revisions are appended as they are committed, each after its parent,
+ * and are referred to by their position in the file.
+ * <pre>
+ * int magic "GVCG", int version, int count, then for each revision:
+ * 16 byte hash, int parent position (-1 for the initial revision),
+ * int generation (1 for the initial revision, one more than the parent's for every other),
+ * long date in milliseconds since the epoch, long number of files added and removed
+ * </pre>
+ * The generation of a revision is its distance from the initial revision, which lets ancestry
+ * questions stop walking as soon as they have gone back far enough.
+ */
+public class CommitGraph {
+	private static final int MAGIC = 0x47564347; // GVCG
+	private static final int VERSION = 1;
+	
+	private static final int HEADER = 12;
+	private static final int RECORD = ContentId.LENGTH + 24;
+	
+	private File graphF;
+	
+	// Mapped when first needed, and dropped whenever revisions are appended.
+	private ByteBuffer graph = null;
+	private Map<ContentId, Integer> positions = null;
+	
+	/**
+	 * Use the commit graph in the given file, which doesn't have to exist yet.
+	 * @param graphF File the graph is stored in.
+	 */
+	public CommitGraph(File graphF) {
+		this.graphF = graphF;
+	}
+	
+	/**
+	 * Get the number of revisions in the graph.
+	 * @return Number of revisions.
+	 */
+	public int size() throws GVCException {
+		return this.getGraph().getInt(8);
+	}
+	
+	/**
+	 * Find a revision in the graph.
+	 * @param hash Hash of the revision.
+	 * @return Position of the revision, or -1 if it isn't in the graph.
+	 */
+	public int indexOf(String hash) throws GVCException {
+		ContentId id;
+		try {
+			id = ContentId.fromHex(hash);
+		}
+		catch (IllegalArgumentException e) {
+			return -1;
+		}
+		
+		// Usually asked about the latest revision, which is last.
+		int last = this.size() - 1;
+		if(last >= 0 && this.getId(last).equals(id)) {
+			return last;
+		}
+		
+		Integer pos = this.getPositions().get(id);
+		return pos == null ? -1 : pos;
+	}
+	
+	/**
+	 * Get the hash of a revision.
+	 * @param pos Position of the revision.
+	 * @return Hash of the revision.
+	 */
+	public String getHash(int pos) throws GVCException {
+		return this.getId(pos).toString();
+	}
+	
+	/**
+	 * Get the parent of a revision.
+	 * @param pos Position of the revision.
+	 * @return Position of the parent, or -1 for the initial revision.
+	 */
+	public int getParent(int pos) throws GVCException {
+		return this.getGraph().getInt(record(pos) + ContentId.LENGTH);
+	}
+	
+	/**
+	 * Get the generation of a revision.
+	 * @param pos Position of the revision.
+	 * @return 1 for the initial revision, one more than the parent's for every other.
+	 */
+	public int getGeneration(int pos) throws GVCException {
+		return this.getGraph().getInt(record(pos) + ContentId.LENGTH + 4);
+	}
+	
+	/**
+	 * Get the date of a revision.
+	 * @param pos Position of the revision.
+	 * @return Date the revision was created, in milliseconds since the epoch.
+	 */
+	public long getDate(int pos) throws GVCException {
+		return this.getGraph().getLong(record(pos) + ContentId.LENGTH + 8);
+	}
+	
+	/**
+	 * Get the size of a revision's diff.
+	 * @param pos Position of the revision.
+	 * @return Number of files added and removed by the revision.
+	 */
+	public long getDiffSize(int pos) throws GVCException {
+		return this.getGraph().getLong(record(pos) + ContentId.LENGTH + 16);
+	}
+	
+	/**
+	 * Walk back a number of revisions.
+	 * @param hash Hash of the revision to start from.
+	 * @param n Number of parents to go back, 0 returns the revision itself.
+	 * @return Hash of the nth parent, or null if the history isn't that long.
+	 * @throws GVCException If the revision isn't in the graph.
+	 */
+	public String nthParent(String hash, int n) throws GVCException {
+		int pos = this.require(hash);
+		for(int i = 0; i < n && pos >= 0; i++) {
+			pos = this.getParent(pos);
+		}
+		return pos < 0 ? null : this.getHash(pos);
+	}
+	
+	/**
+	 * Check if one revision is an ancestor of another.
+	 * A revision counts as its own ancestor.
+	 * @param ancestor Hash of the possible ancestor.
+	 * @param descendant Hash of the possible descendant.
+	 * @return True if ancestor is in the history of descendant.
+	 * @throws GVCException If either revision isn't in the graph.
+	 */
+	public boolean isAncestor(String ancestor, String descendant) throws GVCException {
+		int a = this.require(ancestor);
+		int d = this.require(descendant);
+		
+		// Nothing further back than the ancestor's generation can be the ancestor.
+		int generation = this.getGeneration(a);
+		while(d >= 0 && this.getGeneration(d) > generation) {
+			d = this.getParent(d);
+		}
+		return d == a;
+	}
+	
+	/**
+	 * Find the most recent revision in the history of both of two revisions.
+	 * @param hash1 Hash of one revision.
+	 * @param hash2 Hash of the other revision.
+	 * @return Hash of their most recent common ancestor, or null if they have none.
+	 * @throws GVCException If either revision isn't in the graph.
+	 */
+	public String mergeBase(String hash1, String hash2) throws GVCException {
+		int a = this.require(hash1);
+		int b = this.require(hash2);
+		
+		// Bring both to the same generation, then walk back together until they meet.
+		while(a >= 0 && b >= 0 && a != b) {
+			int genA = this.getGeneration(a);
+			int genB = this.getGeneration(b);
+			if(genA >= genB) {
+				a = this.getParent(a);
+			}
+			if(genB >= genA) {
+				b = this.getParent(b);
+			}
+		}
+		
+		return (a >= 0 && a == b) ? this.getHash(a) : null;
+	}
+	
+	/**
+	 * Add a revision to the graph, along with any of its parents that aren't in it yet.
+	 * Adding a revision already in the graph does nothing.
+	 * @param gvclib GVCLib instance, used to load missing parents.
+	 * @param rev Revision to add.
+	 */
+	public void add(GVCLib gvclib, Revision rev) throws GVCException {
+		// Find the revisions missing from the graph, newest first.
+		List<Revision> missing = new ArrayList<Revision>();
+		while(rev != null && this.indexOf(rev.getHash()) < 0) {
+			missing.add(rev);
+			rev = rev.getParent();
+		}
+		if(missing.isEmpty()) {
+			return;
+		}
+		
+		int count = this.size();
+		ByteBuffer records = ByteBuffer.allocate(missing.size() * RECORD);
+		Map<String, Integer> added = new HashMap<String, Integer>();
+		for(int i = missing.size() - 1; i >= 0; i--) {
+			Revision r = missing.get(i);
+			
+			int parent = -1;
+			int generation = 1;
+			if(r.getParentHash() != null) {
+				Integer p = added.get(r.getParentHash());
+				if(p != null) {
+					parent = p;
+					generation = records.getInt((p - count) * RECORD + ContentId.LENGTH + 4) + 1;
+				}
+				else {
+					parent = this.indexOf(r.getParentHash());
+					generation = this.getGeneration(parent) + 1;
+				}
+			}
+			
+			added.put(r.getHash(), count + added.size());
+			ContentId id = ContentId.fromHex(r.getHash());
+			records.putLong(id.getHigh()).putLong(id.getLow());
+			records.putInt(parent).putInt(generation);
+			records.putLong(r.getDate().getTime()).putLong(r.getDiffSize());
+		}
+		records.flip();
+		
+		try (FileChannel fc = FileChannel.open(this.graphF.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// Records past the count are left over from an interrupted append, and are overwritten.
+			long pos = HEADER + (long) count * RECORD;
+			if(count == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+				fc.write(header, 0);
+			}
+			while(records.hasRemaining()) {
+				pos += fc.write(records, pos);
+			}
+			fc.force(false);
+			
+			// Only count the new records once they are all on disk.
+			ByteBuffer newCount = ByteBuffer.allocate(4);
+			newCount.putInt(count + missing.size()).flip();
+			fc.write(newCount, 8);
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		this.graph = null;
+		this.positions = null;
+	}
+	
+	private int require(String hash) throws GVCException {
+		int pos = this.indexOf(hash);
+		if(pos < 0) {
+			throw new GVCException("Revision " + hash + " is not in the commit graph.");
+		}
+		return pos;
+	}
+	
+	private ContentId getId(int pos) throws GVCException {
+		ByteBuffer graph = this.getGraph();
+		int rec = record(pos);
+		return new ContentId(graph.getLong(rec), graph.getLong(rec + 8));
+	}
+	
+	private static int record(int pos) {
+		return HEADER + pos * RECORD;
+	}
+	
+	private Map<ContentId, Integer> getPositions() throws GVCException {
+		if(this.positions == null) {
+			int count = this.size();
+			Map<ContentId, Integer> positions = new HashMap<ContentId, Integer>(count * 4 / 3 + 1);
+			for(int i = 0; i < count; i++) {
+				positions.put(this.getId(i), i);
+			}
+			this.positions = positions;
+		}
+		return this.positions;
+	}
+	
+	private ByteBuffer getGraph() throws GVCException {
+		if(this.graph == null) {
+			if(!this.graphF.exists()) {
+				ByteBuffer empty = ByteBuffer.allocate(HEADER);
+				empty.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+				this.graph = empty;
+			}
+			else {
+				try (FileChannel fc = FileChannel.open(this.graphF.toPath(), StandardOpenOption.READ)) {
+					this.graph = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				}
+				catch (IOException e) {
+					throw new GVCException(e);
+				}
+				
+				if(this.graph.capacity() < HEADER || this.graph.getInt(0) != MAGIC ||
+						this.graph.getInt(4) != VERSION ||
+						this.graph.capacity() < HEADER + (long) this.graph.getInt(8) * RECORD) {
+					this.graph = null;
+					throw new GVCException(this.graphF + " is corrupt or from an unsupported version.");
+				}
+			}
+		}
+		
+		return this.graph;
+	}
+}
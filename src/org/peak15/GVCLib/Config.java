@@ -0,0 +1,91 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Repository settings, stored as a json object in .GVC/config.
+ * Repositories created before the config file existed simply have none,
+ * so every setting has a default matching how those repositories behave.
+ */
+public class Config {
+	private static ObjectMapper objectMapper = new ObjectMapper();
+	
+	private File configF;
+	private ObjectNode rootNode;
+	
+	/**
+	 * Load the config from the given file.
+	 * A missing file is treated as an empty config.
+	 * @param configF File the config is stored in.
+	 */
+	public Config(File configF) throws GVCException {
+		this.configF = configF;
+		
+		if(configF.exists()) {
+			try {
+				JsonNode node = objectMapper.readValue(configF, JsonNode.class);
+				if(node instanceof ObjectNode) {
+					this.rootNode = (ObjectNode) node;
+					return;
+				}
+			} catch (IOException e) {
+				throw new GVCException(e);
+			}
+		}
+		
+		this.rootNode = objectMapper.createObjectNode();
+	}
+	
+	/**
+	 * Get a setting.
+	 * @param key Name of the setting.
+	 * @param def Value to return if the setting isn't set.
+	 * @return Value of the setting.
+	 */
+	public String get(String key, String def) {
+		JsonNode node = this.rootNode.get(key);
+		if(node == null || node.isNull()) {
+			return def;
+		}
+		return node.asText();
+	}
+	
+	/**
+	 * Get a numeric setting.
+	 * @param key Name of the setting.
+	 * @param def Value to return if the setting isn't set or isn't a number.
+	 * @return Value of the setting.
+	 */
+	public long getLong(String key, long def) {
+		JsonNode node = this.rootNode.get(key);
+		if(node == null || node.isNull()) {
+			return def;
+		}
+		return node.asLong(def);
+	}
+	
+	/**
+	 * Change a setting. Call save() to write it to disk.
+	 * @param key Name of the setting.
+	 * @param value New value of the setting.
+	 */
+	public void set(String key, String value) {
+		this.rootNode.put(key, value);
+	}
+	
+	/**
+	 * Write the config to disk.
+	 */
+	public void save() throws GVCException {
+		try {
+			objectMapper.writerWithDefaultPrettyPrinter().writeValue(this.configF, this.rootNode);
+		} catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.peak15.GVCLib;
+
+/**
+ * Identifies the contents of a file by its 128 bit hash.
+ * Stored as two longs rather than a hex string so file sets stay small, the hex form is only
+ * produced when printing or serializing.
+ * Ids are ordered as unsigned numbers, which is the same order as their hex strings.
+ */
+public final class ContentId implements Comparable<ContentId> {
+	/**
+	 * Length in bytes of the binary form of an id.
+	 */
+	public static final int LENGTH = 16;
+	
+	private static final char[] HEX_CHARS = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	
+	private final long high;
+	private final long low;
+	
+	/**
+	 * Create an id from the two halves of a hash.
+	 * @param high First 8 bytes of the hash, big endian.
+	 * @param low Last 8 bytes of the hash, big endian.
+	 */
+	public ContentId(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+	
+	/**
+	 * Create an id from the binary form of a hash.
+	 * @param hash Array holding the hash.
+	 * @param off Offset of the hash in the array.
+	 * @return Id of the hash.
+	 */
+	public static ContentId fromBytes(byte[] hash, int off) {
+		return new ContentId(readLong(hash, off), readLong(hash, off + 8));
+	}
+	
+	/**
+	 * Create an id from the binary form of a hash.
+	 * @param hash Hash, LENGTH bytes long.
+	 * @return Id of the hash.
+	 */
+	public static ContentId fromBytes(byte[] hash) {
+		if(hash.length != LENGTH) {
+			throw new IllegalArgumentException("Hashes must be " + LENGTH + " bytes long, not " + hash.length);
+		}
+		return fromBytes(hash, 0);
+	}
+	
+	/**
+	 * Parse the hex form of a hash.
+	 * @param hex Hash as 32 hex characters.
+	 * @return Id of the hash.
+	 * @throws IllegalArgumentException If hex isn't a valid hash.
+	 */
+	public static ContentId fromHex(String hex) {
+		if(hex.length() != LENGTH * 2) {
+			throw new IllegalArgumentException("Not a valid hash: " + hex);
+		}
+		return new ContentId(parseHex(hex, 0), parseHex(hex, 16));
+	}
+	
+	/**
+	 * Get the first half of the hash.
+	 * @return First 8 bytes of the hash, big endian.
+	 */
+	public long getHigh() {
+		return this.high;
+	}
+	
+	/**
+	 * Get the second half of the hash.
+	 * @return Last 8 bytes of the hash, big endian.
+	 */
+	public long getLow() {
+		return this.low;
+	}
+	
+	/**
+	 * Write the binary form of this id into an array.
+	 * @param out Array to write into.
+	 * @param off Offset to write LENGTH bytes at.
+	 */
+	public void toBytes(byte[] out, int off) {
+		writeLong(this.high, out, off);
+		writeLong(this.low, out, off + 8);
+	}
+	
+	/**
+	 * Get the binary form of this id.
+	 * @return Hash, LENGTH bytes long.
+	 */
+	public byte[] toBytes() {
+		byte[] out = new byte[LENGTH];
+		toBytes(out, 0);
+		return out;
+	}
+	
+	/**
+	 * Get the hex form of this id, as used in revisions and printed file sets.
+	 * @return Hash as 32 lower case hex characters.
+	 */
+	@Override
+	public String toString() {
+		char[] buf = new char[LENGTH * 2];
+		for(int i = 0; i < 16; i++) {
+			buf[i] = HEX_CHARS[(int) (this.high >>> (60 - i * 4)) & 0xf];
+			buf[i + 16] = HEX_CHARS[(int) (this.low >>> (60 - i * 4)) & 0xf];
+		}
+		return new String(buf);
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof ContentId)) {
+			return false;
+		}
+		ContentId other = (ContentId) o;
+		return this.low == other.low && this.high == other.high;
+	}
+	
+	@Override
+	public int hashCode() {
+		// The bits of a hash are already well mixed.
+		return (int) this.low;
+	}
+	
+	@Override
+	public int compareTo(ContentId other) {
+		int c = compareUnsigned(this.high, other.high);
+		return c != 0 ? c : compareUnsigned(this.low, other.low);
+	}
+	
+	private static int compareUnsigned(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+	
+	private static long readLong(byte[] b, int off) {
+		long v = 0;
+		for(int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xff);
+		}
+		return v;
+	}
+	
+	private static void writeLong(long v, byte[] b, int off) {
+		for(int i = 7; i >= 0; i--) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+	
+	private static long parseHex(String hex, int off) {
+		long v = 0;
+		for(int i = off; i < off + 16; i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if(digit < 0) {
+				throw new IllegalArgumentException("Not a valid hash: " + hex);
+			}
+			v = (v << 4) | digit;
+		}
+		return v;
+	}
+}
@@ -0,0 +1,169 @@
+package org.peak15.GVCLib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary deltas, a stream of instructions that build one version of a file out of another.
+ * Each instruction either copies a run of bytes from the base, or inserts new bytes held in the delta.
+ * Instructions start with a varint holding the run length shifted left by one,
+ * with the low bit set for a copy, followed by the base offset of a copy or the bytes of an insert.
+ *
+ * Matches are found the way git's diff-delta finds them: every block of the base is indexed
+ * by a rolling hash, the target is scanned for windows with the same hash,
+ * and each match found is grown in both directions as far as the bytes agree.
+ */
+public final class Delta {
+	private static final int BLOCK = 16;
+	private static final int PRIME = 0x01000193;
+	private static final int PRIME_OUT; // PRIME to the power of BLOCK - 1, to roll the oldest byte out.
+	static {
+		int p = 1;
+		for(int i = 0; i < BLOCK - 1; i++) {
+			p *= PRIME;
+		}
+		PRIME_OUT = p;
+	}
+	
+	private Delta() {
+	}
+	
+	/**
+	 * Make a delta that builds target out of base.
+	 * @param base Bytes to copy from.
+	 * @param target Bytes to build.
+	 * @return The delta's instructions.
+	 */
+	public static byte[] encode(byte[] base, byte[] target) {
+		// Position + 1 of a block of the base with each hash, 0 for none.
+		int[] index = new int[Integer.highestOneBit(Math.max(base.length / BLOCK, 1)) * 2];
+		int mask = index.length - 1;
+		for(int pos = base.length - base.length % BLOCK - BLOCK; pos >= 0; pos -= BLOCK) {
+			// Going backwards leaves the first block with each hash in the index.
+			index[mix(hash(base, pos)) & mask] = pos + 1;
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(target.length / 8 + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			int insertStart = 0;
+			int i = 0;
+			int h = target.length >= BLOCK ? hash(target, 0) : 0;
+			while(i + BLOCK <= target.length) {
+				int match = index[mix(h) & mask] - 1;
+				if(match >= 0 && same(base, match, target, i, BLOCK)) {
+					// Grow the match back into the bytes waiting to be inserted, and forward as far as it goes.
+					int start = i;
+					int baseStart = match;
+					while(start > insertStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+						start--;
+						baseStart--;
+					}
+					int end = i + BLOCK;
+					int baseEnd = match + BLOCK;
+					while(end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+						end++;
+						baseEnd++;
+					}
+					
+					insert(out, target, insertStart, start);
+					Varint.write(out, ((long) (end - start) << 1) | 1);
+					Varint.write(out, baseStart);
+					
+					i = end;
+					insertStart = end;
+					if(i + BLOCK <= target.length) {
+						h = hash(target, i);
+					}
+					continue;
+				}
+				
+				if(i + BLOCK < target.length) {
+					h = (h - (target[i] & 0xff) * PRIME_OUT) * PRIME + (target[i + BLOCK] & 0xff);
+				}
+				i++;
+			}
+			insert(out, target, insertStart, target.length);
+		}
+		catch (IOException e) {
+			// Can't happen writing to memory.
+			throw new IllegalStateException(e);
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Build a file out of its base and a delta.
+	 * @param base Bytes the delta copies from.
+	 * @param delta The delta's instructions, from its position to its limit.
+	 * @param size Size of the file the delta builds.
+	 * @return The built file.
+	 * @throws IllegalArgumentException If the delta doesn't fit the base, or doesn't build size bytes.
+	 */
+	public static byte[] apply(byte[] base, ByteBuffer delta, int size) {
+		byte[] target = new byte[size];
+		int pos = 0;
+		while(delta.hasRemaining()) {
+			long op = Varint.read(delta);
+			int length = (int) (op >>> 1);
+			if(length < 0 || length > size - pos) {
+				throw new IllegalArgumentException("Delta builds more than " + size + " bytes.");
+			}
+			
+			if((op & 1) != 0) {
+				long offset = Varint.read(delta);
+				if(offset < 0 || offset + length > base.length) {
+					throw new IllegalArgumentException("Delta copies past the end of its base.");
+				}
+				System.arraycopy(base, (int) offset, target, pos, length);
+			}
+			else {
+				delta.get(target, pos, length);
+			}
+			pos += length;
+		}
+		
+		if(pos != size) {
+			throw new IllegalArgumentException("Delta builds " + pos + " bytes, not " + size + ".");
+		}
+		return target;
+	}
+	
+	private static void insert(DataOutputStream out, byte[] b, int start, int end) throws IOException {
+		if(end > start) {
+			Varint.write(out, (long) (end - start) << 1);
+			out.write(b, start, end - start);
+		}
+	}
+	
+	private static int hash(byte[] b, int off) {
+		int h = 0;
+		for(int i = off; i < off + BLOCK; i++) {
+			h = h * PRIME + (b[i] & 0xff);
+		}
+		return h;
+	}
+	
+	/**
+	 * Spread the rolling hash's bits, its low bits only depend on the last few bytes.
+	 */
+	private static int mix(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static boolean same(byte[] a, int aOff, byte[] b, int bOff, int length) {
+		if(aOff + length > a.length || bOff + length > b.length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(a[aOff + i] != b[bOff + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,312 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A directory renamed by a revision, stored once instead of as a removed and an added path
+ * for every file under it. A rename only applies to the hashes it lists, so applying it
+ * costs as much as the files it moved rather than a search of the whole file set.
+ * Renames are applied before the revision's files removed and added, which hold
+ * whatever the renames don't account for.
+ */
+public class DirectoryRename {
+	// Renames that move fewer paths than this aren't worth recording.
+	private static final int MIN_PATHS = 2;
+	
+	private final String from;
+	private final String to;
+	private final List<ContentId> hashes;
+	
+	/**
+	 * Create a directory rename.
+	 * @param from Directory renamed, relative to the root directory with / as the separator.
+	 * @param to New name of the directory, in the same form.
+	 * @param hashes Hashes whose files under from are moved to to.
+	 */
+	public DirectoryRename(String from, String to, List<ContentId> hashes) {
+		this.from = from;
+		this.to = to;
+		this.hashes = hashes;
+	}
+	
+	/**
+	 * Get the directory renamed.
+	 * @return Old directory path, separated by /.
+	 */
+	public String getFrom() {
+		return this.from;
+	}
+	
+	/**
+	 * Get the new name of the directory.
+	 * @return New directory path, separated by /.
+	 */
+	public String getTo() {
+		return this.to;
+	}
+	
+	/**
+	 * Get the hashes this rename applies to.
+	 * @return Hashes with files under the renamed directory.
+	 */
+	public List<ContentId> getHashes() {
+		return this.hashes;
+	}
+	
+	/**
+	 * Move the files of one hash that are under the renamed directory.
+	 * @param files Files with the hash.
+	 * @param trie Trie to intern the new paths into.
+	 * @return The renamed files, or the same set if none of them are under the directory.
+	 */
+	public Set<File> apply(Set<File> files, PathTrie trie) {
+		Set<String> paths = normalize(files);
+		Set<String> renamed = this.apply(paths);
+		return renamed == paths ? files : toFiles(renamed, trie);
+	}
+	
+	private Set<String> apply(Set<String> paths) {
+		Set<String> renamed = null;
+		for(String path : paths) {
+			if(path.startsWith(this.from) && path.length() > this.from.length() && path.charAt(this.from.length()) == '/') {
+				if(renamed == null) {
+					renamed = new HashSet<String>(paths);
+				}
+				renamed.remove(path);
+				renamed.add(this.to + path.substring(this.from.length()));
+			}
+		}
+		return renamed == null ? paths : renamed;
+	}
+	
+	/**
+	 * Look for directories renamed in a diff, by pairing up each removed path with the added path
+	 * of the same hash it shares the most trailing path components with.
+	 * A rename is only kept for a hash if it leaves less to add and remove than before.
+	 * @param oldFs File set the diff was made against.
+	 * @param diffList Files added and removed, as returned by Revision.filesetGetDiff.
+	 * Its maps are replaced with what is left to add and remove once the renames are applied.
+	 * @param trie Trie to intern paths into.
+	 * @return Renames found, in the order they are applied.
+	 */
+	public static List<DirectoryRename> find(Map<ContentId, Set<File>> oldFs,
+			List<Map<ContentId, Set<File>>> diffList, PathTrie trie) {
+		Map<ContentId, Set<File>> added = diffList.get(0);
+		Map<ContentId, Set<File>> removed = diffList.get(1);
+		
+		// Count how many moved paths each candidate rename would explain.
+		final Map<String, Integer> votes = new HashMap<String, Integer>();
+		for(Map.Entry<ContentId, Set<File>> e : removed.entrySet()) {
+			Set<File> addedFiles = added.get(e.getKey());
+			if(addedFiles != null) {
+				vote(normalize(e.getValue()), normalize(addedFiles), votes);
+			}
+		}
+		
+		List<String> candidates = new ArrayList<String>();
+		for(Map.Entry<String, Integer> e : votes.entrySet()) {
+			if(e.getValue() >= MIN_PATHS) {
+				candidates.add(e.getKey());
+			}
+		}
+		if(candidates.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Collections.sort(candidates, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int c = votes.get(b).compareTo(votes.get(a));
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+		
+		// Take the best candidates, skipping any that overlap one already taken.
+		List<DirectoryRename> renames = new ArrayList<DirectoryRename>();
+		for(String candidate : candidates) {
+			int split = candidate.indexOf('\0');
+			String from = candidate.substring(0, split);
+			String to = candidate.substring(split + 1);
+			
+			boolean overlaps = false;
+			for(DirectoryRename r : renames) {
+				overlaps |= related(from, r.from) || related(from, r.to) || related(to, r.from) || related(to, r.to);
+			}
+			if(!overlaps) {
+				renames.add(new DirectoryRename(from, to, new ArrayList<ContentId>()));
+			}
+		}
+		
+		// Work out what is left of each hash's diff once the renames are applied.
+		Map<ContentId, Set<File>> newAdded = new HashMap<ContentId, Set<File>>(added);
+		Map<ContentId, Set<File>> newRemoved = new HashMap<ContentId, Set<File>>(removed);
+		for(ContentId hash : new TreeSet<ContentId>(removed.keySet())) {
+			if(!added.containsKey(hash) || !oldFs.containsKey(hash)) {
+				continue;
+			}
+			
+			Set<String> oldPaths = normalize(oldFs.get(hash));
+			Set<String> removedPaths = normalize(removed.get(hash));
+			Set<String> addedPaths = normalize(added.get(hash));
+			Set<String> newPaths = new HashSet<String>(oldPaths);
+			newPaths.removeAll(removedPaths);
+			newPaths.addAll(addedPaths);
+			
+			Set<String> renamedPaths = oldPaths;
+			List<DirectoryRename> applied = new ArrayList<DirectoryRename>();
+			for(DirectoryRename r : renames) {
+				Set<String> next = r.apply(renamedPaths);
+				if(next != renamedPaths) {
+					applied.add(r);
+					renamedPaths = next;
+				}
+			}
+			if(applied.isEmpty()) {
+				continue;
+			}
+			
+			Set<String> leftRemoved = new HashSet<String>(renamedPaths);
+			leftRemoved.removeAll(newPaths);
+			Set<String> leftAdded = new HashSet<String>(newPaths);
+			leftAdded.removeAll(renamedPaths);
+			if(leftRemoved.size() + leftAdded.size() >= removedPaths.size() + addedPaths.size()) {
+				continue;
+			}
+			
+			for(DirectoryRename r : applied) {
+				r.hashes.add(hash);
+			}
+			putOrRemove(newRemoved, hash, leftRemoved, trie);
+			putOrRemove(newAdded, hash, leftAdded, trie);
+		}
+		
+		List<DirectoryRename> used = new ArrayList<DirectoryRename>();
+		for(DirectoryRename r : renames) {
+			if(!r.hashes.isEmpty()) {
+				used.add(r);
+			}
+		}
+		if(!used.isEmpty()) {
+			diffList.set(0, newAdded);
+			diffList.set(1, newRemoved);
+		}
+		return used;
+	}
+	
+	/**
+	 * Pair each removed path with the added path sharing the longest run of trailing components,
+	 * by sorting them all by their reversed paths so such pairs end up next to each other.
+	 */
+	private static void vote(Set<String> removedPaths, Set<String> addedPaths, Map<String, Integer> votes) {
+		List<String> reversed = new ArrayList<String>(removedPaths.size() + addedPaths.size());
+		Set<String> addedReversed = new HashSet<String>();
+		for(String path : removedPaths) {
+			reversed.add(new StringBuilder(path).reverse().toString());
+		}
+		for(String path : addedPaths) {
+			String r = new StringBuilder(path).reverse().toString();
+			reversed.add(r);
+			addedReversed.add(r);
+		}
+		Collections.sort(reversed);
+		
+		// Nearest added path before and after each position.
+		int[] before = new int[reversed.size()];
+		int[] after = new int[reversed.size()];
+		int last = -1;
+		for(int i = 0; i < reversed.size(); i++) {
+			before[i] = last;
+			if(addedReversed.contains(reversed.get(i))) {
+				last = i;
+			}
+		}
+		last = -1;
+		for(int i = reversed.size() - 1; i >= 0; i--) {
+			after[i] = last;
+			if(addedReversed.contains(reversed.get(i))) {
+				last = i;
+			}
+		}
+		
+		for(int i = 0; i < reversed.size(); i++) {
+			String r = reversed.get(i);
+			if(addedReversed.contains(r)) {
+				continue;
+			}
+			
+			// The nearest added path on either side shares the most with it.
+			String best = null;
+			int bestShared = 0;
+			for(int j : new int[] {before[i], after[i]}) {
+				if(j >= 0) {
+					int shared = sharedComponents(r, reversed.get(j));
+					if(shared > bestShared) {
+						best = reversed.get(j);
+						bestShared = shared;
+					}
+				}
+			}
+			
+			if(best != null && bestShared < r.length() && bestShared < best.length()) {
+				String from = new StringBuilder(r.substring(bestShared + 1)).reverse().toString();
+				String to = new StringBuilder(best.substring(bestShared + 1)).reverse().toString();
+				String key = from + '\0' + to;
+				Integer count = votes.get(key);
+				votes.put(key, count == null ? 1 : count + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Length of the longest run of whole components two reversed paths start with,
+	 * not counting the separator after it.
+	 */
+	private static int sharedComponents(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int shared = 0;
+		for(int i = 0; i < length && a.charAt(i) == b.charAt(i); i++) {
+			if(a.charAt(i) == '/') {
+				shared = i;
+			}
+		}
+		return shared;
+	}
+	
+	private static boolean related(String a, String b) {
+		return a.equals(b) || a.startsWith(b + "/") || b.startsWith(a + "/");
+	}
+	
+	private static void putOrRemove(Map<ContentId, Set<File>> map, ContentId hash, Set<String> paths, PathTrie trie) {
+		if(paths.isEmpty()) {
+			map.remove(hash);
+		}
+		else {
+			map.put(hash, toFiles(paths, trie));
+		}
+	}
+	
+	private static Set<String> normalize(Set<File> files) {
+		Set<String> paths = new HashSet<String>(files.size() * 4 / 3 + 1);
+		for(File file : files) {
+			// Normalize the filesystem separator to /
+			paths.add(file.toString().replace(File.separator, "/"));
+		}
+		return paths;
+	}
+	
+	private static Set<File> toFiles(Set<String> paths, PathTrie trie) {
+		PathSet files = new PathSet(trie);
+		for(String path : paths) {
+			files.add(trie.intern(path));
+		}
+		return files;
+	}
+}
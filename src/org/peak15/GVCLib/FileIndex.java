@@ -0,0 +1,197 @@
+package org.peak15.GVCLib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Working tree index, stored in .GVC/index.
+ * Remembers the size, modification time, file key and hash of every file seen by the
+ * last scan, so files whose metadata hasn't changed don't have to be read and hashed again.
+ *
+ * A file modified in the same timestamp tick the index was written in can't be told
+ * apart from the version that was hashed ("racy" files, as git calls them), so any
+ * entry not strictly older than the index file itself is always hashed again.
+ */
+public class FileIndex {
+	private static final int MAGIC = 0x47564349; // GVCI
+	private static final int VERSION = 2;
+	
+	private File indexF;
+	private long indexTime = Long.MIN_VALUE;
+	
+	// Keyed by interned path, so looking a file up doesn't have to build its path.
+	private Map<PathTrie.Node, Entry> entries = new HashMap<PathTrie.Node, Entry>();
+	private Map<PathTrie.Node, Entry> seen = new ConcurrentHashMap<PathTrie.Node, Entry>();
+	
+	/**
+	 * Metadata and hash of one file in the index.
+	 */
+	private static class Entry {
+		final long size;
+		final long mtime;
+		final String fileKey;
+		final ContentId hash;
+		
+		Entry(long size, long mtime, String fileKey, ContentId hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+		
+		Entry(BasicFileAttributes attrs, ContentId hash) {
+			this(attrs.size(), mtime(attrs), fileKey(attrs), hash);
+		}
+		
+		boolean matches(BasicFileAttributes attrs) {
+			return this.size == attrs.size() &&
+					this.mtime == mtime(attrs) &&
+					this.fileKey.equals(fileKey(attrs));
+		}
+	}
+	
+	/**
+	 * Load the index from the given file.
+	 * A missing index is treated as an empty one.
+	 * @param indexF File the index is stored in.
+	 * @param paths Trie to intern the indexed paths into.
+	 */
+	public FileIndex(File indexF, PathTrie paths) throws GVCException {
+		this.indexF = indexF;
+		
+		if(!indexF.exists()) {
+			return;
+		}
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexF)))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				// Unknown format, just rebuild it.
+				return;
+			}
+			
+			this.indexTime = Files.getLastModifiedTime(indexF.toPath()).to(TimeUnit.NANOSECONDS);
+			
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long mtime = in.readLong();
+				String fileKey = in.readUTF();
+				ContentId hash = new ContentId(in.readLong(), in.readLong());
+				this.entries.put(paths.intern(path), new Entry(size, mtime, fileKey, hash));
+			}
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	/**
+	 * Look up the hash of a file, if its metadata hasn't changed since it was last hashed.
+	 * Safe to call from several threads at once.
+	 * @param rel Path relative to the root directory.
+	 * @param attrs Current attributes of the file.
+	 * @return The file's last hash, or null if it must be hashed again.
+	 */
+	public ContentId lookup(PathTrie.Node rel, BasicFileAttributes attrs) {
+		Entry entry = this.entries.get(rel);
+		
+		// Racy entries might have changed without their metadata changing.
+		if(entry == null || entry.mtime >= this.indexTime || !entry.matches(attrs)) {
+			return null;
+		}
+		
+		this.seen.put(rel, entry);
+		return entry.hash;
+	}
+	
+	/**
+	 * Look up the hash of a file if its metadata is the same as when it was last hashed,
+	 * even if that was too recently for lookup() to trust it.
+	 * Only safe for files whose content can't change without their metadata changing, such as links to blobs.
+	 * @param rel Path relative to the root directory.
+	 * @param attrs Current attributes of the file.
+	 * @return The file's last hash, or null if it isn't in the index or its metadata has changed.
+	 */
+	public ContentId unchangedHash(PathTrie.Node rel, BasicFileAttributes attrs) {
+		Entry entry = this.entries.get(rel);
+		return entry == null || !entry.matches(attrs) ? null : entry.hash;
+	}
+	
+	/**
+	 * Look up the hash a file had when it was last seen, whatever its metadata is now.
+	 * @param rel Path relative to the root directory.
+	 * @return The file's last hash, or null if it isn't in the index.
+	 */
+	public ContentId lastHash(PathTrie.Node rel) {
+		Entry entry = this.entries.get(rel);
+		return entry == null ? null : entry.hash;
+	}
+	
+	/**
+	 * Record the hash of a file that was just hashed.
+	 * Safe to call from several threads at once.
+	 * @param rel Path relative to the root directory.
+	 * @param attrs Attributes of the file when it was hashed.
+	 * @param hash Hash of the file.
+	 */
+	public void update(PathTrie.Node rel, BasicFileAttributes attrs, ContentId hash) {
+		this.seen.put(rel, new Entry(attrs, hash));
+	}
+	
+	/**
+	 * Write out every file looked up or updated since this index was loaded.
+	 * Files that weren't seen are dropped from the index.
+	 */
+	public void save() throws GVCException {
+		File tempF = new File(this.indexF.getParentFile(), this.indexF.getName() + ".tmp");
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempF)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.seen.size());
+			
+			for(Map.Entry<PathTrie.Node, Entry> e : this.seen.entrySet()) {
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey().toString());
+				out.writeLong(entry.size);
+				out.writeLong(entry.mtime);
+				out.writeUTF(entry.fileKey);
+				out.writeLong(entry.hash.getHigh());
+				out.writeLong(entry.hash.getLow());
+			}
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		try {
+			Files.move(tempF.toPath(), this.indexF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	private static long mtime(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+	
+	private static String fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key == null ? "" : key.toString();
+	}
+}
@@ -0,0 +1,364 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable file set, a hash array mapped trie keyed by content id.
+ * plus() and minus() return a new file set sharing everything but the changed path through
+ * the trie with the old one, so applying a diff only costs as much as the diff itself
+ * and old file sets stay valid. All of the Map methods that would modify it throw.
+ *
+ * Each level of the trie is indexed by the next 5 bits of the content id, using all 128 bits,
+ * so two different ids always end up in different slots and there are no collision nodes.
+ * The sets of files are shared with whatever they were added from, and must not be modified.
+ */
+public final class FileSetMap extends AbstractMap<ContentId, Set<File>> {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	
+	private static final FileSetMap EMPTY = new FileSetMap(null, 0);
+	
+	private final Node root;
+	private final int size;
+	
+	private FileSetMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+	
+	/**
+	 * Get the empty file set.
+	 * @return File set with no files in it.
+	 */
+	public static FileSetMap empty() {
+		return EMPTY;
+	}
+	
+	/**
+	 * Get an immutable file set with the same contents as a map.
+	 * @param fileSet File set to copy, returned as is if it is already a FileSetMap.
+	 * @return Immutable copy of the file set.
+	 */
+	public static FileSetMap copyOf(Map<ContentId, Set<File>> fileSet) {
+		if(fileSet instanceof FileSetMap) {
+			return (FileSetMap) fileSet;
+		}
+		
+		FileSetMap copy = EMPTY;
+		for(Map.Entry<ContentId, Set<File>> e : fileSet.entrySet()) {
+			copy = copy.plus(e.getKey(), e.getValue());
+		}
+		return copy;
+	}
+	
+	/**
+	 * Get a file set with a content id mapped to some files.
+	 * @param hash Content id of the files.
+	 * @param files Files with that content, replacing any already in this file set.
+	 * @return New file set, this one is left unchanged.
+	 */
+	public FileSetMap plus(ContentId hash, Set<File> files) {
+		Leaf leaf = new Leaf(hash, files);
+		if(this.root == null) {
+			return new FileSetMap(Node.EMPTY.put(leaf, 0), 1);
+		}
+		
+		int newSize = this.containsKey(hash) ? this.size : this.size + 1;
+		return new FileSetMap(this.root.put(leaf, 0), newSize);
+	}
+	
+	/**
+	 * Get a file set without a content id.
+	 * @param hash Content id to remove.
+	 * @return New file set, or this one if it doesn't contain the id.
+	 */
+	public FileSetMap minus(ContentId hash) {
+		if(this.root == null) {
+			return this;
+		}
+		
+		Node newRoot = this.root.remove(hash, 0);
+		if(newRoot == this.root) {
+			return this;
+		}
+		return newRoot == null ? EMPTY : new FileSetMap(newRoot, this.size - 1);
+	}
+	
+	@Override
+	public Set<File> get(Object key) {
+		if(this.root == null || !(key instanceof ContentId)) {
+			return null;
+		}
+		
+		Leaf leaf = this.root.find((ContentId) key, 0);
+		return leaf == null ? null : leaf.files;
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return this.root != null && key instanceof ContentId && this.root.find((ContentId) key, 0) != null;
+	}
+	
+	@Override
+	public int size() {
+		return this.size;
+	}
+	
+	@Override
+	public Set<Map.Entry<ContentId, Set<File>>> entrySet() {
+		return new AbstractSet<Map.Entry<ContentId, Set<File>>>() {
+			@Override
+			public Iterator<Map.Entry<ContentId, Set<File>>> iterator() {
+				return new LeafIterator(FileSetMap.this.root);
+			}
+			
+			@Override
+			public int size() {
+				return FileSetMap.this.size;
+			}
+		};
+	}
+	
+	/**
+	 * Get the 5 bits of a content id that index the trie level at a shift.
+	 */
+	private static int index(ContentId hash, int shift) {
+		if(shift < 60) {
+			return (int) (hash.getLow() >>> shift) & MASK;
+		}
+		else if(shift < 64) {
+			return (int) ((hash.getLow() >>> shift) | (hash.getHigh() << (64 - shift))) & MASK;
+		}
+		else {
+			return (int) (hash.getHigh() >>> (shift - 64)) & MASK;
+		}
+	}
+	
+	/**
+	 * A content id and its files, stored in the slots of a node.
+	 */
+	private static final class Leaf implements Map.Entry<ContentId, Set<File>> {
+		final ContentId hash;
+		final Set<File> files;
+		
+		Leaf(ContentId hash, Set<File> files) {
+			this.hash = hash;
+			this.files = files;
+		}
+		
+		@Override
+		public ContentId getKey() {
+			return this.hash;
+		}
+		
+		@Override
+		public Set<File> getValue() {
+			return this.files;
+		}
+		
+		@Override
+		public Set<File> setValue(Set<File> value) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+			return this.hash.equals(other.getKey()) && this.files.equals(other.getValue());
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.hash.hashCode() ^ this.files.hashCode();
+		}
+	}
+	
+	/**
+	 * A level of the trie. Only the slots in use are stored, the bitmap says which those are.
+	 * Each slot holds either a Leaf or the Node for the next level.
+	 */
+	private static final class Node {
+		static final Node EMPTY = new Node(0, new Object[0]);
+		
+		final int bitmap;
+		final Object[] slots;
+		
+		Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+		
+		Leaf find(ContentId hash, int shift) {
+			Node node = this;
+			while(true) {
+				int bit = 1 << index(hash, shift);
+				if((node.bitmap & bit) == 0) {
+					return null;
+				}
+				
+				Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+				if(slot instanceof Node) {
+					node = (Node) slot;
+					shift += BITS;
+				}
+				else {
+					Leaf leaf = (Leaf) slot;
+					return leaf.hash.equals(hash) ? leaf : null;
+				}
+			}
+		}
+		
+		Node put(Leaf leaf, int shift) {
+			int bit = 1 << index(leaf.hash, shift);
+			int i = Integer.bitCount(this.bitmap & (bit - 1));
+			
+			if((this.bitmap & bit) == 0) {
+				// Empty slot, insert the leaf.
+				Object[] newSlots = new Object[this.slots.length + 1];
+				System.arraycopy(this.slots, 0, newSlots, 0, i);
+				newSlots[i] = leaf;
+				System.arraycopy(this.slots, i, newSlots, i + 1, this.slots.length - i);
+				return new Node(this.bitmap | bit, newSlots);
+			}
+			
+			Object slot = this.slots[i];
+			if(slot instanceof Node) {
+				return this.replace(i, ((Node) slot).put(leaf, shift + BITS));
+			}
+			
+			Leaf existing = (Leaf) slot;
+			if(existing.hash.equals(leaf.hash)) {
+				return this.replace(i, leaf);
+			}
+			
+			// Two ids share this slot, push them both down a level.
+			Node child = EMPTY.put(existing, shift + BITS).put(leaf, shift + BITS);
+			return this.replace(i, child);
+		}
+		
+		/**
+		 * @return This node if the id isn't in it, null if the node is now empty.
+		 */
+		Node remove(ContentId hash, int shift) {
+			int bit = 1 << index(hash, shift);
+			if((this.bitmap & bit) == 0) {
+				return this;
+			}
+			
+			int i = Integer.bitCount(this.bitmap & (bit - 1));
+			Object slot = this.slots[i];
+			
+			if(slot instanceof Node) {
+				Node child = (Node) slot;
+				Node newChild = child.remove(hash, shift + BITS);
+				if(newChild == child) {
+					return this;
+				}
+				else if(newChild == null) {
+					return this.removeSlot(i, bit);
+				}
+				else if(newChild.slots.length == 1 && newChild.slots[0] instanceof Leaf) {
+					// Pull a lone leaf back up rather than keep a level just for it.
+					return this.replace(i, newChild.slots[0]);
+				}
+				return this.replace(i, newChild);
+			}
+			
+			if(!((Leaf) slot).hash.equals(hash)) {
+				return this;
+			}
+			return this.removeSlot(i, bit);
+		}
+		
+		private Node replace(int i, Object slot) {
+			Object[] newSlots = this.slots.clone();
+			newSlots[i] = slot;
+			return new Node(this.bitmap, newSlots);
+		}
+		
+		private Node removeSlot(int i, int bit) {
+			if(this.slots.length == 1) {
+				return null;
+			}
+			
+			Object[] newSlots = new Object[this.slots.length - 1];
+			System.arraycopy(this.slots, 0, newSlots, 0, i);
+			System.arraycopy(this.slots, i + 1, newSlots, i, newSlots.length - i);
+			return new Node(this.bitmap & ~bit, newSlots);
+		}
+	}
+	
+	/**
+	 * Walks every leaf of the trie, depth first.
+	 */
+	private static final class LeafIterator implements Iterator<Map.Entry<ContentId, Set<File>>> {
+		// The deepest possible trie, 128 bits at 5 bits a level.
+		private final Node[] nodes = new Node[128 / BITS + 2];
+		private final int[] positions = new int[nodes.length];
+		private int depth = -1;
+		private Leaf next = null;
+		
+		LeafIterator(Node root) {
+			if(root != null) {
+				this.depth = 0;
+				this.nodes[0] = root;
+				this.advance();
+			}
+		}
+		
+		private void advance() {
+			this.next = null;
+			while(this.depth >= 0) {
+				Node node = this.nodes[this.depth];
+				int pos = this.positions[this.depth];
+				
+				if(pos >= node.slots.length) {
+					this.depth--;
+					continue;
+				}
+				
+				this.positions[this.depth] = pos + 1;
+				Object slot = node.slots[pos];
+				if(slot instanceof Node) {
+					this.depth++;
+					this.nodes[this.depth] = (Node) slot;
+					this.positions[this.depth] = 0;
+				}
+				else {
+					this.next = (Leaf) slot;
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.next != null;
+		}
+		
+		@Override
+		public Map.Entry<ContentId, Set<File>> next() {
+			if(this.next == null) {
+				throw new NoSuchElementException();
+			}
+			
+			Leaf leaf = this.next;
+			this.advance();
+			return leaf;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -2,44 +2,139 @@ package org.peak15.GVCLib;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import com.twmacinta.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Walks a directory tree and builds a file set of everything in it.
+ * Files can be hashed inline on the walking thread, or handed off to a pool of
+ * hasher threads so several files are read and hashed at once.
+ */
 public class FileSetVisitor implements FileVisitor<Path> {
 	
 	private GVCLib gvclib;
-	private Map<String, Set<File>> fileSet = new HashMap<String, Set<File>>();
+	private FileIndex index = null;
+	private FileStore store = null;
+	private Map<ContentId, Set<File>> fileSet = new HashMap<ContentId, Set<File>>();
+	
+	// Directory being walked, files are interned as its children instead of cutting the root off their paths.
+	private PathTrie.Node directory = null;
+	
+	private ForkJoinPool pool = null;
+	private Semaphore pending;
+	private int maxPending;
+	private IOException failure = null;
 	
 	/**
 	 * Construct a FileSetVisitor with the given GVCLib instance.
+	 * Files will be hashed inline as they are visited.
 	 * @param gvclib GVCLib instance to use.
 	 */
 	public FileSetVisitor(GVCLib gvclib) {
 		this.gvclib = gvclib;
 	}
 	
+	/**
+	 * Construct a FileSetVisitor that hashes files on a pool of hasher threads.
+	 * The walk only enqueues files, and stalls once too many are waiting to be hashed.
+	 * awaitCompletion() must be called after the walk, and shutdown() when done.
+	 * @param gvclib GVCLib instance to use.
+	 * @param threads Number of hasher threads, 1 or less hashes inline.
+	 */
+	public FileSetVisitor(GVCLib gvclib, int threads) {
+		this.gvclib = gvclib;
+		
+		if(threads > 1) {
+			this.pool = new ForkJoinPool(threads);
+			
+			// Enough queued files to keep every hasher busy while the walk catches up.
+			this.maxPending = threads * 4;
+			this.pending = new Semaphore(this.maxPending);
+		}
+	}
+	
+	/**
+	 * Use a working tree index to skip hashing files whose metadata hasn't changed.
+	 * The index is updated with every file hashed during the walk.
+	 * @param index Index to use, or null to hash every file.
+	 */
+	public void setIndex(FileIndex index) {
+		this.index = index;
+	}
+	
+	/**
+	 * Copy every file hashed into a filestore as it is hashed, so new content is read once instead of
+	 * once to hash it and again to store it. Files skipped by the index aren't read, and so aren't stored.
+	 * @param store Store to copy into, or null to only hash files.
+	 */
+	public void setStore(FileStore store) {
+		this.store = store;
+	}
+	
 	/**
 	 * Get the file set that this FileVisitor generates.
-	 * @return Generated file set. Will only be populated after directory is walked.
+	 * @return Generated file set. Will only be populated after directory is walked
+	 * and, when hashing in parallel, after awaitCompletion() has returned.
 	 */
-	public Map<String, Set<File>> getFileSet() {
+	public Map<ContentId, Set<File>> getFileSet() {
 		return fileSet;
 	}
 	
+	/**
+	 * Wait for every enqueued file to be hashed.
+	 * Does nothing when hashing inline.
+	 * @throws IOException If any file could not be hashed.
+	 */
+	public void awaitCompletion() throws IOException {
+		if(this.pool != null) {
+			try {
+				this.pending.acquire(this.maxPending);
+				this.pending.release(this.maxPending);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for hashers.");
+			}
+		}
+		
+		checkFailure();
+	}
+	
+	/**
+	 * Stops the hasher threads, if there are any.
+	 */
+	public void shutdown() {
+		if(this.pool != null) {
+			this.pool.shutdownNow();
+		}
+	}
+	
 	@Override
 	public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+		this.directory = this.directory.getParent();
 		return FileVisitResult.CONTINUE;
 	}
 
 	@Override
 	public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+		// Never pick up the repository's own files.
+		if(dir.equals(gvclib.getConfigDirectory())) {
+			return FileVisitResult.SKIP_SUBTREE;
+		}
+		
+		if(this.directory == null) {
+			this.directory = gvclib.makeRelativeNode(dir);
+		}
+		else {
+			this.directory = this.directory.child(dir.getFileName().toString());
+		}
+		
 		return FileVisitResult.CONTINUE;
 	}
 
@@ -47,27 +142,126 @@ public class FileSetVisitor implements FileVisitor<Path> {
 	public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
 		//TODO: implement ignore file
 		
-		// MD5sum the files and add them to the set.
-		String hash = MD5.asHex(MD5.getHash(file.toFile()));
-		
 		// make it relative to the root folder.
-		file = gvclib.makeRelative(file);
+		PathTrie.Node rel = this.directory.child(file.getFileName().toString());
+		
+		// Files that haven't changed since the last scan keep their old hash.
+		ContentId linked = null;
+		if(this.index != null) {
+			ContentId hash = this.index.lookup(rel, attrs);
+			if(hash == null) {
+				// A file checked out as a link to its blob has the blob's content, as long as its metadata says
+				// it hasn't been written to. If it has been, so has the blob, and it has to be hashed to find out.
+				ContentId last = this.index.lastHash(rel);
+				if(last != null && gvclib.getFileStore().isLinked(last, attrs)) {
+					if(last.equals(this.index.unchangedHash(rel, attrs))) {
+						hash = last;
+						this.index.update(rel, attrs, hash);
+					}
+					else {
+						linked = last;
+					}
+				}
+			}
+			if(hash != null) {
+				addFile(hash, rel);
+				return FileVisitResult.CONTINUE;
+			}
+		}
 		
-		// Is this file already in the set?
-		if(fileSet.containsKey(hash)) {
-			// Yes, so add this path to it.
-			fileSet.get(hash).add(file.toFile());
+		if(this.pool == null) {
+			hashFile(file, rel, attrs, linked);
 		}
 		else {
-			// Add a new entry to the set.
-			Set<File> set = new HashSet<File>();
+			// Stop early if a hasher has already failed.
+			checkFailure();
 			
-			set.add(file.toFile());
-			fileSet.put(hash, set);
+			try {
+				this.pending.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while queueing " + file);
+			}
+			
+			final Path queued = file;
+			final PathTrie.Node queuedRel = rel;
+			final BasicFileAttributes queuedAttrs = attrs;
+			final ContentId queuedLinked = linked;
+			this.pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						hashFile(queued, queuedRel, queuedAttrs, queuedLinked);
+					} catch (IOException e) {
+						fail(e);
+					} finally {
+						pending.release();
+					}
+				}
+			});
 		}
 		
 		return FileVisitResult.CONTINUE;
 	}
+	
+	/**
+	 * @param linked Hash of the blob the file is a link to, if it was written to since it was checked out, or null.
+	 */
+	private void hashFile(Path file, PathTrie.Node rel, BasicFileAttributes attrs, ContentId linked) throws IOException {
+		// Hash the files and add them to the set.
+		ContentId hash;
+		if(this.store == null) {
+			hash = gvclib.getHasher().hash(file);
+		}
+		else {
+			try {
+				hash = this.store.store(gvclib.getHasher(), file);
+			} catch (GVCException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		if(linked != null && !linked.equals(hash)) {
+			gvclib.err.println("Warning: " + rel + " is a link to the blob of " + linked +
+					"\nand was changed, which changed the blob too. The filestore's copy of " + linked + " is corrupt.\n" +
+					"The changed file is committed as " + hash + ".");
+		}
+		
+		if(this.index != null) {
+			this.index.update(rel, attrs, hash);
+		}
+		
+		addFile(hash, rel);
+	}
+	
+	private void addFile(ContentId hash, PathTrie.Node rel) {
+		synchronized(fileSet) {
+			// Is this file already in the set?
+			if(fileSet.containsKey(hash)) {
+				// Yes, so add this path to it.
+				((PathSet) fileSet.get(hash)).add(rel);
+			}
+			else {
+				// Add a new entry to the set.
+				PathSet set = new PathSet(gvclib.getPathTrie());
+				
+				set.add(rel);
+				fileSet.put(hash, set);
+			}
+		}
+	}
+	
+	private synchronized void fail(IOException e) {
+		// Keep the first failure, later ones are usually caused by it.
+		if(this.failure == null) {
+			this.failure = e;
+		}
+	}
+	
+	private synchronized void checkFailure() throws IOException {
+		if(this.failure != null) {
+			throw this.failure;
+		}
+	}
 
 	@Override
 	public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
@@ -0,0 +1,617 @@
+package org.peak15.GVCLib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.peak15.GVCLib.hashers.ContentHasher;
+
+/**
+ * Content of every file committed, stored in .GVC/filestore under its hash.
+ * Blobs are spread over subdirectories named after the first two hex digits of their hash,
+ * so no one directory ends up with every file in the repository.
+ * A blob is written to a temp file and renamed into place once it is complete,
+ * so a blob that exists is always whole, and is never written again.
+ * Blobs are read only, so a working tree file hard linked to one can't be changed in place.
+ *
+ * Files over the chunk threshold are split into chunks by a Chunker instead, stored once each
+ * in the chunks directory, and the file is stored as a manifest listing its chunks next to where
+ * its blob would be. An edit to a large file then only stores the few chunks around it.
+ *
+ * A new blob can also be replaced by a delta against another blob, usually the last version
+ * of the same file, when the delta is much smaller. Deltas are only ever made of blobs this
+ * FileStore has just written, as nothing can have been stored against them yet,
+ * so no chain of deltas can loop or grow past the depth it was made with.
+ */
+public class FileStore {
+	/**
+	 * Default size in bytes above which files are stored as chunks, 0 for never.
+	 * Set chunkThreshold in the config to change it.
+	 */
+	public static final long CHUNK_THRESHOLD = 0;
+	
+	/**
+	 * Default longest chain of deltas a blob can be rebuilt through, 0 to never store deltas.
+	 * Set deltaDepth in the config to change it.
+	 */
+	public static final int DELTA_DEPTH = 0;
+	
+	/**
+	 * Largest blob stored as a delta, or used as the base of one, as both are held in memory.
+	 */
+	public static final int DELTA_MAX_SIZE = 64 * 1024 * 1024;
+	
+	private static final int MANIFEST_MAGIC = 0x4756434d; // GVCM
+	private static final int MANIFEST_VERSION = 1;
+	private static final int DELTA_MAGIC = 0x47564344; // GVCD
+	private static final int DELTA_VERSION = 1;
+	private static final int DELTA_HEADER = 36;
+	
+	private File storeDir;
+	private File chunkDir;
+	private long chunkThreshold = CHUNK_THRESHOLD;
+	
+	// Whole blobs written since the last takeWritten(), the only ones that may be replaced by deltas.
+	private Set<ContentId> written = Collections.synchronizedSet(new HashSet<ContentId>());
+	
+	/**
+	 * Use the blobs in the given directory.
+	 * @param storeDir Directory the blobs are stored in.
+	 */
+	public FileStore(File storeDir) {
+		this.storeDir = storeDir;
+		this.chunkDir = new File(storeDir, "chunks");
+	}
+	
+	/**
+	 * Set which files are stored as chunks.
+	 * @param threshold Size in bytes above which files are chunked, 0 to store every file whole.
+	 */
+	public void setChunking(long threshold) {
+		this.chunkThreshold = threshold;
+	}
+	
+	/**
+	 * Get the file a blob is stored in.
+	 * @param hash Hash of the blob.
+	 * @return File the blob is, or would be, stored in.
+	 */
+	public File getBlobFile(ContentId hash) {
+		String hex = hash.toString();
+		return new File(new File(this.storeDir, hex.substring(0, 2)), hex);
+	}
+	
+	private File getManifestFile(ContentId hash) {
+		File blobF = this.getBlobFile(hash);
+		return new File(blobF.getParentFile(), blobF.getName() + ".chunks");
+	}
+	
+	private File getDeltaFile(ContentId hash) {
+		File blobF = this.getBlobFile(hash);
+		return new File(blobF.getParentFile(), blobF.getName() + ".delta");
+	}
+	
+	private File getChunkFile(ContentId hash) {
+		String hex = hash.toString();
+		return new File(new File(this.chunkDir, hex.substring(0, 2)), hex);
+	}
+	
+	/**
+	 * Check if a blob is in the store, whole, as chunks or as a delta.
+	 * @param hash Hash of the blob.
+	 * @return True if the store has it.
+	 */
+	public boolean contains(ContentId hash) {
+		return this.getBlobFile(hash).exists() || this.getManifestFile(hash).exists() || this.getDeltaFile(hash).exists();
+	}
+	
+	private boolean chunks(Path source) throws IOException {
+		return this.chunkThreshold > 0 && Files.size(source) >= this.chunkThreshold;
+	}
+	
+	/**
+	 * Copy a file into the store, unless the store already has its content.
+	 * The file is hashed again as it is copied, and the blob is stored under the hash it turns out to have,
+	 * so a file that changed since it was hashed can never be stored under its old hash.
+	 * @param hasher Hasher the hash came from.
+	 * @param hash Hash of the file's content when it was last hashed.
+	 * @param source File to copy.
+	 * @return True if the blob was written, false if the store already had it.
+	 * @throws GVCException If the file no longer has the given hash.
+	 */
+	public boolean store(ContentHasher hasher, ContentId hash, Path source) throws GVCException {
+		if(this.contains(hash)) {
+			return false;
+		}
+		
+		ContentId actual = this.store(hasher, source);
+		if(!actual.equals(hash)) {
+			throw new GVCException(source + " changed since it was hashed, commit again.");
+		}
+		return true;
+	}
+	
+	/**
+	 * Hash a file while copying it into the store, so it is only read once.
+	 * Its hash isn't known until it has been copied, so the copy goes to a temp file
+	 * that is renamed to its hash, or thrown away if the store already has that content.
+	 * @param hasher Hasher to hash the file with.
+	 * @param source File to hash and store.
+	 * @return Hash of the file's content.
+	 */
+	public ContentId store(ContentHasher hasher, Path source) throws GVCException {
+		if(!this.storeDir.exists()) {
+			this.storeDir.mkdirs();
+		}
+		
+		File tempF = null;
+		try {
+			if(this.chunks(source)) {
+				return this.storeChunks(hasher, source);
+			}
+			
+			// The fanout directory isn't known yet, but any directory in the store can be renamed from.
+			tempF = File.createTempFile("blob", ".tmp", this.storeDir);
+			
+			ContentId hash;
+			try (FileChannel out = FileChannel.open(tempF.toPath(), StandardOpenOption.WRITE)) {
+				hash = hasher.hash(source, out);
+				
+				if(this.contains(hash)) {
+					return hash;
+				}
+				
+				out.force(true);
+			}
+			tempF.setReadOnly();
+			
+			File blobF = this.getBlobFile(hash);
+			File fanoutDir = blobF.getParentFile();
+			if(!fanoutDir.exists()) {
+				fanoutDir.mkdirs();
+			}
+			
+			// Another thread storing the same content may have got there first, its blob is just as good.
+			Files.move(tempF.toPath(), blobF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tempF = null;
+			this.written.add(hash);
+			return hash;
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		finally {
+			if(tempF != null) {
+				tempF.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Copy a blob out of the store.
+	 * @param hash Hash of the blob.
+	 * @param target File to write the blob's content to, replacing anything already there.
+	 */
+	public void restore(ContentId hash, Path target) throws GVCException {
+		File blobF = this.getBlobFile(hash);
+		if(!this.contains(hash)) {
+			throw new GVCException("The filestore does not have " + hash);
+		}
+		
+		try {
+			if(blobF.exists()) {
+				copy(blobF.toPath(), target);
+			}
+			else if(this.getManifestFile(hash).exists()) {
+				this.restoreChunks(hash, target);
+			}
+			else {
+				Files.deleteIfExists(target);
+				Files.write(target, this.load(hash));
+			}
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	/**
+	 * Hard link a file to a blob, so it takes no space or copying of its own.
+	 * @param hash Hash of the blob.
+	 * @param target File to link, replacing anything already there.
+	 * @return True if it was linked, false if it is stored as chunks or a delta, or the filesystem
+	 * can't link it to the store, and it should be restored by copying.
+	 */
+	public boolean link(ContentId hash, Path target) throws GVCException {
+		File blobF = this.getBlobFile(hash);
+		if(!blobF.exists()) {
+			if(this.contains(hash)) {
+				return false;
+			}
+			throw new GVCException("The filestore does not have " + hash);
+		}
+		
+		// Blobs from before they were stored read only.
+		if(blobF.canWrite()) {
+			blobF.setReadOnly();
+		}
+		
+		try {
+			Files.deleteIfExists(target);
+			Files.createLink(target, blobF.toPath());
+			return true;
+		}
+		catch (UnsupportedOperationException | IOException e) {
+			// Another filesystem, or one without hard links, or too many links to the blob already.
+			return false;
+		}
+	}
+	
+	/**
+	 * Check if a file is a hard link to a blob, which means it has the blob's content without reading it.
+	 * @param hash Hash of the blob.
+	 * @param attrs Attributes of the file.
+	 * @return True if the file and the blob are the same file.
+	 */
+	public boolean isLinked(ContentId hash, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		if(key == null) {
+			return false;
+		}
+		
+		try {
+			return key.equals(Files.readAttributes(this.getBlobFile(hash).toPath(), BasicFileAttributes.class).fileKey());
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Split a file into chunks, storing any the store doesn't have, and store its manifest.
+	 * The file is only read once, for both the chunks and the hash of the whole file.
+	 * @param hasher Hasher to hash the file and its chunks with.
+	 * @param source File to store.
+	 * @return Hash of the whole file.
+	 */
+	private ContentId storeChunks(ContentHasher hasher, Path source) throws GVCException, IOException {
+		ContentHasher.Digest fileDigest = hasher.newDigest();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entriesOut = new DataOutputStream(entries);
+		long size = 0;
+		int count = 0;
+		
+		// Room for a whole chunk past the one being cut, so a cut point never depends on where a read stopped.
+		byte[] buf = new byte[Chunker.MAX_SIZE * 2];
+		int start = 0;
+		int end = 0;
+		boolean eof = false;
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			while(true) {
+				if(!eof && end - start < Chunker.MAX_SIZE) {
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					start = 0;
+					
+					ByteBuffer bb = ByteBuffer.wrap(buf, end, buf.length - end);
+					while(bb.hasRemaining() && !eof) {
+						eof = in.read(bb) == -1;
+					}
+					end = bb.position();
+				}
+				if(start == end) {
+					break;
+				}
+				
+				int length = Chunker.cut(buf, start, end - start);
+				fileDigest.update(buf, start, length);
+				ContentHasher.Digest chunkDigest = hasher.newDigest();
+				chunkDigest.update(buf, start, length);
+				ContentId chunk = ContentId.fromBytes(chunkDigest.digest());
+				this.storeChunk(chunk, buf, start, length);
+				
+				entriesOut.writeLong(chunk.getHigh());
+				entriesOut.writeLong(chunk.getLow());
+				entriesOut.writeInt(length);
+				size += length;
+				count++;
+				start += length;
+			}
+		}
+		
+		ContentId hash = ContentId.fromBytes(fileDigest.digest());
+		if(this.contains(hash)) {
+			return hash;
+		}
+		
+		File manifestF = this.getManifestFile(hash);
+		File fanoutDir = manifestF.getParentFile();
+		if(!fanoutDir.exists()) {
+			fanoutDir.mkdirs();
+		}
+		
+		File tempF = File.createTempFile("manifest", ".tmp", fanoutDir);
+		try {
+			try (FileChannel out = FileChannel.open(tempF.toPath(), StandardOpenOption.WRITE)) {
+				DataOutputStream manifestOut = new DataOutputStream(Channels.newOutputStream(out));
+				manifestOut.writeInt(MANIFEST_MAGIC);
+				manifestOut.writeInt(MANIFEST_VERSION);
+				manifestOut.writeLong(size);
+				manifestOut.writeInt(count);
+				entries.writeTo(manifestOut);
+				manifestOut.flush();
+				out.force(true);
+			}
+			tempF.setReadOnly();
+			
+			Files.move(tempF.toPath(), manifestF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tempF = null;
+		}
+		finally {
+			if(tempF != null) {
+				tempF.delete();
+			}
+		}
+		return hash;
+	}
+	
+	private void storeChunk(ContentId chunk, byte[] b, int off, int len) throws IOException {
+		File chunkF = this.getChunkFile(chunk);
+		if(chunkF.exists()) {
+			return;
+		}
+		
+		File fanoutDir = chunkF.getParentFile();
+		if(!fanoutDir.exists()) {
+			fanoutDir.mkdirs();
+		}
+		
+		File tempF = File.createTempFile("chunk", ".tmp", fanoutDir);
+		try {
+			try (FileChannel out = FileChannel.open(tempF.toPath(), StandardOpenOption.WRITE)) {
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				while(bb.hasRemaining()) {
+					out.write(bb);
+				}
+				out.force(true);
+			}
+			tempF.setReadOnly();
+			
+			Files.move(tempF.toPath(), chunkF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tempF = null;
+		}
+		finally {
+			if(tempF != null) {
+				tempF.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Write out a chunked file by copying each of its chunks in turn.
+	 */
+	private void restoreChunks(ContentId hash, Path target) throws GVCException, IOException {
+		Files.deleteIfExists(target);
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.getManifestFile(hash))));
+				FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			if(in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+				throw new GVCException("The manifest of " + hash + " is not a known format.");
+			}
+			
+			long size = in.readLong();
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				ContentId chunk = new ContentId(in.readLong(), in.readLong());
+				in.readInt();
+				
+				File chunkF = this.getChunkFile(chunk);
+				if(!chunkF.exists()) {
+					throw new GVCException("The filestore does not have chunk " + chunk + " of " + hash);
+				}
+				try (FileChannel chunkIn = FileChannel.open(chunkF.toPath(), StandardOpenOption.READ)) {
+					transfer(chunkIn, out);
+				}
+			}
+			
+			if(out.size() != size) {
+				throw new GVCException("The chunks of " + hash + " don't add up to its size.");
+			}
+		}
+	}
+	
+	/**
+	 * Get the blobs written whole since this was last called, and start over.
+	 * @return Hashes of the blobs.
+	 */
+	public Set<ContentId> takeWritten() {
+		synchronized(this.written) {
+			Set<ContentId> taken = new HashSet<ContentId>(this.written);
+			this.written.clear();
+			return taken;
+		}
+	}
+	
+	/**
+	 * Replace a blob that was just written with a delta against another blob, if the delta is
+	 * at most half its size. The delta is checked to rebuild the blob before the blob is deleted.
+	 * @param hash Hash of the blob, which must be in takeWritten() and not be the base of another delta.
+	 * @param base Hash of the blob to make the delta against.
+	 * @param maxDepth Longest chain of deltas the blob may end up rebuilt through.
+	 * @return True if the blob was replaced by a delta.
+	 */
+	public boolean deltify(ContentId hash, ContentId base, int maxDepth) throws GVCException {
+		File blobF = this.getBlobFile(hash);
+		if(hash.equals(base) || !blobF.exists() || blobF.length() > DELTA_MAX_SIZE) {
+			return false;
+		}
+		
+		try {
+			// Neither the base's chain may be too deep, nor may it lead back to this blob.
+			int depth = 1;
+			for(ContentId h = base; ; depth++) {
+				if(depth > maxDepth || h.equals(hash)) {
+					return false;
+				}
+				File deltaF = this.getDeltaFile(h);
+				if(!deltaF.exists()) {
+					break;
+				}
+				h = this.readDeltaHeader(deltaF).base;
+			}
+			
+			File baseF = this.getBlobFile(base);
+			if(baseF.exists() ? baseF.length() > DELTA_MAX_SIZE : !this.getDeltaFile(base).exists()) {
+				// Too big, chunked, or missing.
+				return false;
+			}
+			
+			byte[] baseBytes = this.load(base);
+			byte[] target = Files.readAllBytes(blobF.toPath());
+			byte[] delta = Delta.encode(baseBytes, target);
+			if(delta.length > target.length / 2 ||
+					!Arrays.equals(Delta.apply(baseBytes, ByteBuffer.wrap(delta), target.length), target)) {
+				return false;
+			}
+			
+			File deltaF = this.getDeltaFile(hash);
+			File tempF = File.createTempFile("delta", ".tmp", deltaF.getParentFile());
+			try {
+				try (FileChannel out = FileChannel.open(tempF.toPath(), StandardOpenOption.WRITE)) {
+					ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER);
+					header.putInt(DELTA_MAGIC);
+					header.putInt(DELTA_VERSION);
+					header.putLong(base.getHigh());
+					header.putLong(base.getLow());
+					header.putInt(depth);
+					header.putLong(target.length);
+					header.flip();
+					ByteBuffer[] bufs = {header, ByteBuffer.wrap(delta)};
+					while(bufs[1].hasRemaining()) {
+						out.write(bufs);
+					}
+					out.force(true);
+				}
+				tempF.setReadOnly();
+				
+				Files.move(tempF.toPath(), deltaF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				tempF = null;
+			}
+			finally {
+				if(tempF != null) {
+					tempF.delete();
+				}
+			}
+			
+			Files.delete(blobF.toPath());
+			return true;
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	/**
+	 * Read a blob that is stored whole or as a delta into memory, applying its chain of deltas.
+	 */
+	private byte[] load(ContentId hash) throws GVCException, IOException {
+		File blobF = this.getBlobFile(hash);
+		if(blobF.exists()) {
+			return Files.readAllBytes(blobF.toPath());
+		}
+		
+		File deltaF = this.getDeltaFile(hash);
+		if(!deltaF.exists()) {
+			throw new GVCException("The filestore does not have " + hash + " whole or as a delta.");
+		}
+		
+		ByteBuffer delta = ByteBuffer.wrap(Files.readAllBytes(deltaF.toPath()));
+		DeltaHeader header = this.readDeltaHeader(delta);
+		try {
+			return Delta.apply(this.load(header.base), delta, (int) header.size);
+		}
+		catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new GVCException("The delta of " + hash + " is corrupt: " + e.getMessage());
+		}
+	}
+	
+	private DeltaHeader readDeltaHeader(File deltaF) throws GVCException, IOException {
+		try (FileChannel in = FileChannel.open(deltaF.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(DELTA_HEADER);
+			while(buf.hasRemaining()) {
+				if(in.read(buf) == -1) {
+					break;
+				}
+			}
+			buf.flip();
+			return this.readDeltaHeader(buf);
+		}
+	}
+	
+	private DeltaHeader readDeltaHeader(ByteBuffer buf) throws GVCException {
+		if(buf.remaining() < DELTA_HEADER || buf.getInt() != DELTA_MAGIC || buf.getInt() != DELTA_VERSION) {
+			throw new GVCException("Not a delta of a known format.");
+		}
+		
+		DeltaHeader header = new DeltaHeader();
+		header.base = new ContentId(buf.getLong(), buf.getLong());
+		header.depth = buf.getInt();
+		header.size = buf.getLong();
+		return header;
+	}
+	
+	/**
+	 * What a delta is made against, how many deltas deep it is, and the size of what it builds.
+	 */
+	private static class DeltaHeader {
+		ContentId base;
+		int depth;
+		long size;
+	}
+	
+	/**
+	 * Copy one file to another by the filesystem, without passing through the heap.
+	 * @param source File to copy.
+	 * @param target File to copy to, replacing anything already there.
+	 * @throws IOException
+	 */
+	public static void copy(Path source, Path target) throws IOException {
+		// Replaced rather than overwritten, in case it is a link to a blob.
+		Files.deleteIfExists(target);
+		
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			transfer(in, out);
+		}
+	}
+	
+	private static void transfer(FileChannel in, FileChannel out) throws IOException {
+		long size = in.size();
+		long pos = 0;
+		while(pos < size) {
+			long copied = in.transferTo(pos, size - pos, out);
+			if(copied <= 0) {
+				// The file shrank while it was being copied.
+				break;
+			}
+			pos += copied;
+		}
+	}
+}
@@ -11,27 +11,67 @@ import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.peak15.GVCLib.commands.Command;
+import org.peak15.GVCLib.hashers.ContentHasher;
+import org.peak15.GVCLib.hashers.MD5Hasher;
+import org.peak15.GVCLib.hashers.SHA256Hasher;
+import org.peak15.GVCLib.hashers.XXH128Hasher;
+
+import com.twmacinta.util.MD5;
 
 /**
  * Shared objects for GVC.
  */
 public class GVCLib {
 	private Map<String, Command> commands = new HashMap<String, Command>();
+	private Map<String, ContentHasher> hashers = new HashMap<String, ContentHasher>();
 	private Path rootDir;
 	private Path configDir;
 	private Path revDir;
 	private Path fsDir;
+	private SnapshotStore snapshots;
+	private FileStore fileStore;
+	private RevisionPack pack;
+	private RevisionCache revisionCache;
+	private CommitGraph commitGraph;
+	private PathTrie paths = new PathTrie();
+	private Config config;
+	private ContentHasher hasher;
 	private Revision currentRev = null;
+	private int hashThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Default number of revisions to cache, set revisionCacheEntries in the config to change it.
+	 */
+	public static final long REVISION_CACHE_ENTRIES = 1024;
+	
+	/**
+	 * Default approximate size in bytes of the revision cache,
+	 * set revisionCacheBytes in the config to change it.
+	 */
+	public static final long REVISION_CACHE_BYTES = 64 * 1024 * 1024;
 	
 	public PrintStream out = System.out;
 	public PrintStream err = System.err;
 	
+	/**
+	 * Create a GVCLib instance with the built in hashers registered.
+	 */
+	public GVCLib() {
+		this.registerHasher(new MD5Hasher());
+		this.registerHasher(new SHA256Hasher());
+		this.registerHasher(new XXH128Hasher());
+		
+		this.hasher = this.hashers.get("md5");
+	}
+	
 	/**
 	 * Specify the output streams this GVCLib instance should print to.
 	 * @param out Standard output stream.
@@ -85,6 +125,64 @@ public class GVCLib {
 		return commands.keySet();
 	}
 	
+	/**
+	 * Registers a hasher, so repositories can be initialized to use it.
+	 * @param hasher Hasher to register.
+	 */
+	public void registerHasher(ContentHasher hasher) {
+		hashers.put(hasher.getName(), hasher);
+	}
+	
+	/**
+	 * Gets a hasher by name.
+	 * @param name Hasher to get.
+	 * @return Hasher matching specified name.
+	 */
+	public ContentHasher getHasher(String name) throws GVCException {
+		if(hashers.containsKey(name)) {
+			return hashers.get(name);
+		}
+		else {
+			throw new GVCException(name + " is not a registered hasher.");
+		}
+	}
+	
+	/**
+	 * Get the names of all registered hashers.
+	 * @return Set of names of registered hashers.
+	 */
+	public Set<String> getHasherNames() {
+		return hashers.keySet();
+	}
+	
+	/**
+	 * Get the hasher this repository identifies files and revisions with.
+	 * @return The repository's hasher.
+	 */
+	public ContentHasher getHasher() {
+		return this.hasher;
+	}
+	
+	/**
+	 * Set the hasher this repository identifies files and revisions with, and record it in the config.
+	 * Changing the hasher of a repository that already has revisions will make every file look changed,
+	 * so this should only be done when initializing a repository.
+	 * @param name Name of the hasher to use.
+	 */
+	public void setHasher(String name) throws GVCException {
+		this.hasher = this.getHasher(name);
+		this.config.set("hash", name);
+		this.config.save();
+	}
+	
+	/**
+	 * Get the settings of this repository.
+	 * @return The repository's config.
+	 */
+	public Config getConfig() {
+		return this.config;
+	}
+	
 	/**
 	 * Calls findRootDirectory(Path) with the current directory.
 	 * @return True if the directory was found and set, false otherwise.
@@ -96,7 +194,7 @@ public class GVCLib {
 	/**
 	 * Search all the parent folders of the given directory for a .GVC folder,
 	 * then sets it's parent folder as the root folder for this instance.
-	 * Also sets the config, revision, and filestore directories.
+	 * Also sets the config, revision, and filestore directories, and loads the repository's config.
 	 * @param startDir Directory to being searching inside of and in parents of.
 	 * @return True if the directory was found and set, false otherwise.
 	 */
@@ -106,10 +204,15 @@ public class GVCLib {
 			
 			if(iter.hasNext()) {
 				Path dir = iter.next().toAbsolutePath().getParent();
+				boolean newRoot = !dir.equals(this.rootDir);
 				this.rootDir = dir;
 				this.configDir = new File(dir.toFile(), ".GVC").toPath();
 				this.revDir = new File(this.configDir.toFile(), "revisions").toPath();
 				this.fsDir = new File(this.configDir.toFile(), "filestore").toPath();
+				this.snapshots = new SnapshotStore(new File(this.configDir.toFile(), "snapshots"));
+				this.fileStore = new FileStore(this.fsDir.toFile());
+				this.pack = new RevisionPack(new File(this.configDir.toFile(), "revisions.pack"),
+						new File(this.configDir.toFile(), "revisions.idx"));
 				
 				// Create these directories if they don't exist.
 				if(!this.revDir.toFile().exists())
@@ -117,6 +220,25 @@ public class GVCLib {
 				if(!this.fsDir.toFile().exists())
 					this.fsDir.toFile().mkdir();
 				
+				// Repositories without a config are MD5 repositories.
+				this.config = new Config(new File(this.configDir.toFile(), "config"));
+				this.hasher = this.getHasher(this.config.get("hash", "md5"));
+				this.fileStore.setChunking(this.config.getLong("chunkThreshold", FileStore.CHUNK_THRESHOLD));
+				
+				if(this.hasher instanceof MD5Hasher) {
+					this.selectMD5Backend();
+				}
+				
+				// Keep cached revisions when called again for the same repository.
+				if(newRoot) {
+					this.revisionCache = new RevisionCache(
+							(int) this.config.getLong("revisionCacheEntries", REVISION_CACHE_ENTRIES),
+							this.config.getLong("revisionCacheBytes", REVISION_CACHE_BYTES));
+					this.currentRev = null;
+					this.commitGraph = new CommitGraph(new File(this.configDir.toFile(), "commit-graph"));
+					this.paths = new PathTrie();
+				}
+				
 				return true;
 			}
 			else {
@@ -132,6 +254,26 @@ public class GVCLib {
 		return false;
 	}
 	
+	/**
+	 * Pick the MD5 backend to hash with.
+	 * The first time a repository is used the backends are calibrated, and the fastest is
+	 * remembered in the config so later runs don't have to calibrate again.
+	 * Setting the md5Backend config (to java, native or jdk) forces a backend,
+	 * as does the com.twmacinta.util.MD5.BACKEND system property, which takes precedence.
+	 */
+	private void selectMD5Backend() throws GVCException {
+		if(System.getProperty("com.twmacinta.util.MD5.BACKEND") != null) {
+			return;
+		}
+		
+		String backend = this.config.get("md5Backend", null);
+		if(backend == null || !MD5.setBackend(backend)) {
+			// Not calibrated yet, or calibrated on a machine with different backends.
+			this.config.set("md5Backend", MD5.getBackendName(MD5.getBackend()));
+			this.config.save();
+		}
+	}
+	
 	/**
 	 * Get the root folder used by this GVCLib instance.
 	 * @return The root folder used by this GVCLib instance.
@@ -164,28 +306,112 @@ public class GVCLib {
 		return this.fsDir;
 	}
 	
+	/**
+	 * Get the store of committed file content used by this GVCLib instance.
+	 * @return The blobs in the filestore folder.
+	 */
+	public FileStore getFileStore() {
+		return this.fileStore;
+	}
+	
+	/**
+	 * Get the snapshots of complete file sets used by this GVCLib instance.
+	 * @return The snapshots in the .GVC/snapshots folder.
+	 */
+	public SnapshotStore getSnapshotStore() {
+		return this.snapshots;
+	}
+	
+	/**
+	 * Get the trie every path in this repository's file sets is interned into.
+	 * @return Trie of paths relative to the root directory.
+	 */
+	public PathTrie getPathTrie() {
+		return this.paths;
+	}
+	
+	/**
+	 * Set how many threads getFileSet() hashes files with.
+	 * Defaults to the number of available processors.
+	 * @param threads Number of hasher threads, 1 hashes every file on the walking thread.
+	 */
+	public void setHashThreads(int threads) {
+		this.hashThreads = threads;
+	}
+	
+	/**
+	 * Get how many threads getFileSet() hashes files with.
+	 * @return Number of hasher threads.
+	 */
+	public int getHashThreads() {
+		return this.hashThreads;
+	}
+	
 	/**
 	 * Gets a set of all files in the repository.
+	 * Only files changed since the last call are actually read,
+	 * the rest are looked up in the working tree index in .GVC/index.
+	 * @return Map with keys as hashes and values as files.
+	 */
+	public Map<ContentId, Set<File>> getFileSet() throws GVCException {
+		return this.getFileSet(false);
+	}
+	
+	/**
+	 * Gets a set of all files in the repository, optionally storing their content as they are hashed.
+	 * Storing while hashing reads each changed file once, where storeFiles() would read it a second time.
+	 * Changed content the filestore already has is still copied, then thrown away.
+	 * @param store True to copy every file read into the filestore.
 	 * @return Map with keys as hashes and values as files.
 	 */
-	public Map<String, Set<File>> getFileSet() throws GVCException {
-		FileSetVisitor fsv = new FileSetVisitor(this);
+	public Map<ContentId, Set<File>> getFileSet(boolean store) throws GVCException {
+		FileIndex index = this.loadFileIndex();
+		Map<ContentId, Set<File>> fileSet = this.getFileSet(index, store);
+		index.save();
+		
+		return fileSet;
+	}
+	
+	/**
+	 * Gets a set of all files in the repository, using and updating an index that is left for the caller to save.
+	 * For commands that change the working tree after scanning it, and record what they changed in the index.
+	 * @param index Working tree index, from loadFileIndex().
+	 * @param store True to copy every file read into the filestore.
+	 * @return Map with keys as hashes and values as files.
+	 */
+	public Map<ContentId, Set<File>> getFileSet(FileIndex index, boolean store) throws GVCException {
+		FileSetVisitor fsv = new FileSetVisitor(this, this.hashThreads);
+		fsv.setIndex(index);
+		if(store) {
+			fsv.setStore(this.fileStore);
+		}
 		
 		try {
 			Files.walkFileTree(this.getRootDirectory(), fsv);
+			fsv.awaitCompletion();
 		} catch (IOException e) {
 			throw new GVCException(e);
+		} finally {
+			fsv.shutdown();
 		}
 		
 		return fsv.getFileSet();
 	}
 	
+	/**
+	 * Load the working tree index in .GVC/index.
+	 * @return The index, empty if there isn't one yet.
+	 */
+	public FileIndex loadFileIndex() throws GVCException {
+		return new FileIndex(new File(this.getConfigDirectory().toFile(), "index"), this.paths);
+	}
+	
 	/**
 	 * Print the given file set in a somewhat eye-pleasing manner.
 	 * @param File set to print.
 	 */
-	public void printFileSet(Map<String, Set<File>> fileSet) {
-		for(String hash : fileSet.keySet()) {
+	public void printFileSet(Map<ContentId, Set<File>> fileSet) {
+		for(ContentId hash : fileSet.keySet()) {
 			out.print(hash + ":");
 			for(File file : fileSet.get(hash)) {
 				out.print(" " + file.getPath());
@@ -246,6 +472,30 @@ public class GVCLib {
 		return this.makeAbsolute(rel.toFile()).toPath();
 	}
 	
+	/**
+	 * Makes an interned path into an absolute path, without building its relative path first.
+	 * @param rel Node of a path relative to the root directory.
+	 * @return Equivalent absolute path.
+	 */
+	public Path makeAbsolute(PathTrie.Node rel) {
+		if(rel.getParent() == null) {
+			return this.getRootDirectory();
+		}
+		return this.makeAbsolute(rel.getParent()).resolve(rel.getName());
+	}
+	
+	/**
+	 * Makes an absolute path into an interned path relative to the root directory.
+	 * @param abs Absolute path.
+	 * @return Node of the equivalent relative path.
+	 */
+	public PathTrie.Node makeRelativeNode(Path abs) {
+		if(abs.equals(this.getRootDirectory())) {
+			return this.paths.root();
+		}
+		return this.makeRelativeNode(abs.getParent()).child(abs.getFileName().toString());
+	}
+	
 	private String makeAbsolute(String rel) {
 		String root = this.getRootDirectory().toString();
 		
@@ -260,19 +510,184 @@ public class GVCLib {
 	}
 	
 	/**
-	 * Save a revision to disk.
+	 * Copy the content of the files a new revision added into the file store,
+	 * skipping any content the store already has.
+	 * Call it before the revision is saved, so a saved revision never refers to content that isn't stored.
+	 * After getFileSet(true) the store already has everything that was read,
+	 * so this only copies content left out by files the index skipped.
+	 * Then, if deltaDepth is set in the config, new blobs are replaced by deltas against
+	 * the last version of the same file where that saves space.
+	 * @param rev Revision just made from the files in the root directory.
+	 * @return Number of blobs written.
+	 */
+	public int storeFiles(Revision rev) throws GVCException {
+		int stored = 0;
+		for(Map.Entry<ContentId, Set<File>> e : rev.getFilesAdded().entrySet()) {
+			if(this.fileStore.contains(e.getKey())) {
+				continue;
+			}
+			
+			// Any of the files will do, they all have the same content.
+			File file = e.getValue().iterator().next();
+			if(this.fileStore.store(this.hasher, e.getKey(), this.makeAbsolute(file.toPath()))) {
+				stored++;
+			}
+		}
+		
+		// Taken even when deltas are off, so blobs from this revision can't be made deltas later.
+		Set<ContentId> written = this.fileStore.takeWritten();
+		int maxDepth = (int) this.config.getLong("deltaDepth", FileStore.DELTA_DEPTH);
+		if(maxDepth > 0 && rev.getFilesRemoved() != null) {
+			this.storeDeltas(Arrays.asList(rev.getFilesAdded(), rev.getFilesRemoved()), written, maxDepth);
+		}
+		
+		return stored;
+	}
+	
+	/**
+	 * Replace blobs added by a diff with deltas against the blobs removed from the same paths,
+	 * where the delta is much smaller than the blob.
+	 * Only blobs nothing can have been stored against yet may be replaced, and blobs the diff removed
+	 * are never replaced, as they might be used as bases by this call.
+	 * @param diff Files added and removed, as returned by Revision.filesetGetDiff.
+	 * @param candidates Blobs that may be replaced, from FileStore.takeWritten().
+	 * @param maxDepth Longest chain of deltas any blob may end up rebuilt through.
+	 * @return Number of blobs replaced by deltas.
+	 */
+	public int storeDeltas(List<Map<ContentId, Set<File>>> diff, Set<ContentId> candidates, int maxDepth) throws GVCException {
+		Map<ContentId, Set<File>> added = diff.get(0);
+		Map<ContentId, Set<File>> removed = diff.get(1);
+		
+		Map<File, ContentId> oldHashes = new HashMap<File, ContentId>();
+		for(Map.Entry<ContentId, Set<File>> e : removed.entrySet()) {
+			for(File file : e.getValue()) {
+				oldHashes.put(file, e.getKey());
+			}
+		}
+		
+		int replaced = 0;
+		for(Map.Entry<ContentId, Set<File>> e : added.entrySet()) {
+			ContentId hash = e.getKey();
+			if(!candidates.contains(hash) || removed.containsKey(hash)) {
+				continue;
+			}
+			
+			// The first of its files that had other content before.
+			for(File file : e.getValue()) {
+				ContentId base = oldHashes.get(file);
+				if(base != null) {
+					if(this.fileStore.deltify(hash, base, maxDepth)) {
+						replaced++;
+					}
+					break;
+				}
+			}
+		}
+		return replaced;
+	}
+	
+	/**
+	 * Save a revision to disk, along with a snapshot of its file set if it is due one.
 	 * @param rev Revision to save.
 	 */
 	public void saveRevision(Revision rev) throws GVCException {
-		File revF = new File(this.getRevisionDirectory().toFile(), rev.getHash() + ".json");
-		stringToFile(rev.getSerialized(), revF);
+		rev.writeTo(new File(this.getRevisionDirectory().toFile(), rev.getHash() + ".rev"));
+		
+		Map<ContentId, Set<File>> snapshot = rev.takePendingSnapshot();
+		if(snapshot != null) {
+			this.snapshots.save(rev.getHash(), snapshot);
+		}
+		
+		this.revisionCache.put(rev);
+		
+		// Keep the commit graph up to date when that's cheap, anything else is added when it is next used.
+		String parent = rev.getParentHash();
+		if(parent == null || this.commitGraph.indexOf(parent) >= 0) {
+			this.commitGraph.add(this, rev);
+		}
+	}
+	
+	/**
+	 * Load a revision from disk, or from the cache of recently used revisions.
+	 * The revision pack is checked first, then the loose revision files.
+	 * @param hash Hash of the revision to load.
+	 * @return The revision.
+	 */
+	public Revision loadRevision(String hash) throws GVCException {
+		Revision rev = this.revisionCache.get(hash);
+		if(rev != null) {
+			return rev;
+		}
+		
+		ByteBuffer packed = this.pack.find(hash);
+		if(packed != null) {
+			rev = new Revision(this, hash, packed);
+		}
+		else {
+			rev = new Revision(this, this.getRevisionFile(hash));
+		}
+		
+		this.revisionCache.put(rev);
+		return rev;
+	}
+	
+	/**
+	 * Check if a revision has been saved, either loose or in the pack.
+	 * Revisions are found by name only, imported revisions don't have the hash of their stored bytes.
+	 * @param hash Hash of the revision.
+	 * @return True if the revision exists.
+	 */
+	public boolean hasRevision(String hash) throws GVCException {
+		return this.pack.contains(hash) || this.getRevisionFile(hash).exists();
+	}
+	
+	/**
+	 * Get the commit graph, for walking and querying history without loading revisions.
+	 * The current revision and its history are added to the graph first if they aren't in it,
+	 * which loads them all the first time a repository from before the graph existed is used.
+	 * @return The commit graph in .GVC/commit-graph.
+	 */
+	public CommitGraph getCommitGraph() throws GVCException {
+		String current = this.getCurrentRevisionHash();
+		if(current != null && this.commitGraph.indexOf(current) < 0) {
+			Revision rev = this.getCurrentRevision();
+			if(rev != null) {
+				this.commitGraph.add(this, rev);
+			}
+		}
+		return this.commitGraph;
+	}
+	
+	/**
+	 * Get the pack revisions are moved into when the repository is repacked.
+	 * @return The pack in the .GVC folder.
+	 */
+	public RevisionPack getRevisionPack() {
+		return this.pack;
+	}
+	
+	/**
+	 * Get the file a revision is stored in.
+	 * Revisions are stored as hash.rev, revisions saved by older versions as hash.json.
+	 * @param hash Hash of the revision.
+	 * @return The revision's file, which may not exist yet.
+	 */
+	public File getRevisionFile(String hash) {
+		File revF = new File(this.getRevisionDirectory().toFile(), hash + ".rev");
+		if(!revF.exists()) {
+			File jsonF = new File(this.getRevisionDirectory().toFile(), hash + ".json");
+			if(jsonF.exists()) {
+				return jsonF;
+			}
+		}
+		return revF;
 	}
 	
 	/**
 	 * Sets current revision for this repository and writes this value to disk.
 	 * @param rev Revision to set as current revision.
 	 */
-	public void setCurrentRevision(Revision rev) throws GVCException {
+	public synchronized void setCurrentRevision(Revision rev) throws GVCException {
 		this.currentRev = rev;
 		File revF = new File(this.getConfigDirectory().toFile(), "current_revision");
 		stringToFile(rev.getHash(), revF);
@@ -280,22 +695,38 @@ public class GVCLib {
 	
 	/**
 	 * Get the current revision for this repository, loaded from disk if necessary.
+	 * current_revision is checked on every call, in case something else has changed it,
+	 * but the revision is only loaded again when it names a different one.
 	 * @return Current revision for this repository.
 	 */
-	public Revision getCurrentRevision() {
-		if(this.currentRev == null) {
-			// attempt to load from disk
-			try {
-				String currentRevS = fileToString(new File(this.getConfigDirectory().toFile(), "current_revision"));
-				return new Revision(this, new File(this.getRevisionDirectory().toFile(), currentRevS + ".json"));
-			}
-			catch (GVCException e) {
-				return null;
-			}
+	public synchronized Revision getCurrentRevision() {
+		String currentRevS = this.getCurrentRevisionHash();
+		if(currentRevS == null) {
+			return null;
 		}
-		else {
+		
+		try {
+			if(this.currentRev == null || !this.currentRev.getHash().equals(currentRevS)) {
+				this.currentRev = this.loadRevision(currentRevS);
+			}
 			return this.currentRev;
 		}
+		catch (GVCException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the hash of the current revision, read from current_revision without loading the revision.
+	 * @return Hash of the current revision, or null if there isn't one.
+	 */
+	public String getCurrentRevisionHash() {
+		try {
+			return fileToString(new File(this.getConfigDirectory().toFile(), "current_revision"));
+		}
+		catch (GVCException e) {
+			return null;
+		}
 	}
 	
 	/**
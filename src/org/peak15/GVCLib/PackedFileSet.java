@@ -0,0 +1,557 @@
+package org.peak15.GVCLib;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable file set packed into a handful of flat arrays instead of a map of sets of files.
+ * Content ids are kept sorted in two parallel arrays of longs, and each one points at a run of paths
+ * in a single table of UTF-8 bytes. This takes a fraction of the memory of a HashMap of HashSets,
+ * two file sets can be diffed by walking both in order, and the whole thing reads and writes as one block.
+ *
+ * Paths are stored with the separator normalized to /, sorted by their bytes so runs can be merged.
+ * Sets of files are only built when they are asked for, and can't be modified.
+ * <pre>
+ * int count, int path count, int path bytes,
+ * long[count] high halves of the ids, long[count] low halves of the ids,
+ * int[count] end of each id's paths, int[path count] end of each path's bytes, then the path bytes
+ * </pre>
+ */
+public final class PackedFileSet extends AbstractMap<ContentId, Set<File>> {
+	private static final Charset utf8 = Charset.forName("UTF-8");
+	
+	private static final PackedFileSet EMPTY = new Builder(0).build();
+	
+	private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			return comparePaths(a, 0, a.length, b, 0, b.length);
+		}
+	};
+	
+	private final int size;
+	private final long[] highs;
+	private final long[] lows;
+	// Entry i's paths are firstPath[i] until firstPath[i + 1], path j's bytes are pathStart[j] until pathStart[j + 1].
+	private final int[] firstPath;
+	private final int[] pathStart;
+	private final byte[] bytes;
+	
+	private PackedFileSet(int size, long[] highs, long[] lows, int[] firstPath, int[] pathStart, byte[] bytes) {
+		this.size = size;
+		this.highs = highs;
+		this.lows = lows;
+		this.firstPath = firstPath;
+		this.pathStart = pathStart;
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * Get the empty file set.
+	 * @return File set with no files in it.
+	 */
+	public static PackedFileSet empty() {
+		return EMPTY;
+	}
+	
+	/**
+	 * Get a packed file set with the same contents as a map.
+	 * @param fileSet File set to copy, returned as is if it is already a PackedFileSet.
+	 * @return Packed copy of the file set.
+	 */
+	public static PackedFileSet copyOf(Map<ContentId, Set<File>> fileSet) {
+		if(fileSet instanceof PackedFileSet) {
+			return (PackedFileSet) fileSet;
+		}
+		
+		// Pack the entries in whatever order the map has them, then sort just the ids and put the paths in the same order.
+		// Sorting flat arrays of longs is far quicker than sorting the map entries themselves.
+		Builder unsorted = new Builder(fileSet.size());
+		boolean normalize = !File.separator.equals("/");
+		for(Map.Entry<ContentId, Set<File>> e : fileSet.entrySet()) {
+			unsorted.startEntry(e.getKey().getHigh(), e.getKey().getLow());
+			
+			byte[][] paths = new byte[e.getValue().size()][];
+			int i = 0;
+			for(File file : e.getValue()) {
+				// Normalize the filesystem separator to /
+				String path = normalize ? file.toString().replace(File.separator, "/") : file.toString();
+				paths[i++] = path.getBytes(utf8);
+			}
+			if(paths.length > 1) {
+				Arrays.sort(paths, BYTE_ORDER);
+			}
+			for(byte[] path : paths) {
+				unsorted.addPath(path, 0, path.length);
+			}
+		}
+		PackedFileSet packed = unsorted.build();
+		
+		int size = packed.size;
+		long[] highs = packed.highs.clone();
+		long[] lows = packed.lows.clone();
+		int[] order = new int[size];
+		for(int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		sort(highs, lows, order, 0, size - 1);
+		
+		Builder sorted = new Builder(size, packed.firstPath[size], packed.bytes.length);
+		for(int i = 0; i < size; i++) {
+			sorted.copyEntry(packed, order[i]);
+		}
+		return sorted.build();
+	}
+	
+	/**
+	 * Finds files added and removed between two file sets, by walking both in order of content id.
+	 * For a hash in both sets only the paths added or removed are listed, so moving one of
+	 * many copies of a file costs one path rather than every copy.
+	 * @param oldFs File set to compare to.
+	 * @param newFs File set to show differences in.
+	 * @return List where first map is files added and second map is files removed, both packed.
+	 */
+	public static List<Map<ContentId, Set<File>>> diff(PackedFileSet oldFs, PackedFileSet newFs) {
+		Builder added = new Builder(16);
+		Builder removed = new Builder(16);
+		
+		int i = 0;
+		int j = 0;
+		while(i < oldFs.size || j < newFs.size) {
+			int c;
+			if(i == oldFs.size) {
+				c = 1;
+			}
+			else if(j == newFs.size) {
+				c = -1;
+			}
+			else {
+				c = compareUnsigned(oldFs.highs[i], newFs.highs[j]);
+				if(c == 0) {
+					c = compareUnsigned(oldFs.lows[i], newFs.lows[j]);
+				}
+			}
+			
+			if(c < 0) {
+				// This file is in the old set but not the new set.
+				removed.copyEntry(oldFs, i++);
+			}
+			else if(c > 0) {
+				// This file is new.
+				added.copyEntry(newFs, j++);
+			}
+			else {
+				// This file is in both old and new, list the filenames that are different.
+				diffPaths(oldFs, i, newFs, j, added, removed);
+				i++;
+				j++;
+			}
+		}
+		
+		List<Map<ContentId, Set<File>>> diffList = new ArrayList<Map<ContentId, Set<File>>>();
+		diffList.add(added.build());
+		diffList.add(removed.build());
+		return diffList;
+	}
+	
+	/**
+	 * Read a file set written by writeTo.
+	 * @param in Buffer to read from, its position is advanced past the file set.
+	 * @return The file set.
+	 * @throws IllegalArgumentException If the file set is malformed.
+	 */
+	public static PackedFileSet read(ByteBuffer in) {
+		int size = in.getInt();
+		int paths = in.getInt();
+		int length = in.getInt();
+		if(size < 0 || paths < 0 || length < 0 ||
+				in.remaining() < 16L * size + 4L * size + 4L * paths + length) {
+			throw new IllegalArgumentException("Malformed file set.");
+		}
+		
+		long[] highs = new long[size];
+		long[] lows = new long[size];
+		int[] firstPath = new int[size + 1];
+		int[] pathStart = new int[paths + 1];
+		byte[] bytes = new byte[length];
+		
+		in.asLongBuffer().get(highs);
+		in.position(in.position() + 8 * size);
+		in.asLongBuffer().get(lows);
+		in.position(in.position() + 8 * size);
+		in.asIntBuffer().get(firstPath, 1, size);
+		in.position(in.position() + 4 * size);
+		in.asIntBuffer().get(pathStart, 1, paths);
+		in.position(in.position() + 4 * paths);
+		in.get(bytes);
+		
+		// Everything else relies on the ids being sorted and the ends only going up.
+		for(int i = 0; i < size; i++) {
+			if(firstPath[i + 1] < firstPath[i] || (i > 0 &&
+					(compareUnsigned(highs[i - 1], highs[i]) > 0 ||
+					(highs[i - 1] == highs[i] && compareUnsigned(lows[i - 1], lows[i]) >= 0)))) {
+				throw new IllegalArgumentException("Malformed file set.");
+			}
+		}
+		for(int j = 0; j < paths; j++) {
+			if(pathStart[j + 1] < pathStart[j]) {
+				throw new IllegalArgumentException("Malformed file set.");
+			}
+		}
+		if(firstPath[size] != paths || pathStart[paths] != length) {
+			throw new IllegalArgumentException("Malformed file set.");
+		}
+		
+		return new PackedFileSet(size, highs, lows, firstPath, pathStart, bytes);
+	}
+	
+	/**
+	 * Write this file set as a single block.
+	 * @param out Output to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		int paths = this.firstPath[this.size];
+		int length = this.pathStart[paths];
+		out.writeInt(this.size);
+		out.writeInt(paths);
+		out.writeInt(length);
+		
+		for(int i = 0; i < this.size; i++) {
+			out.writeLong(this.highs[i]);
+		}
+		for(int i = 0; i < this.size; i++) {
+			out.writeLong(this.lows[i]);
+		}
+		for(int i = 1; i <= this.size; i++) {
+			out.writeInt(this.firstPath[i]);
+		}
+		for(int j = 1; j <= paths; j++) {
+			out.writeInt(this.pathStart[j]);
+		}
+		out.write(this.bytes, 0, length);
+	}
+	
+	@Override
+	public int size() {
+		return this.size;
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return this.indexOf(key) >= 0;
+	}
+	
+	@Override
+	public Set<File> get(Object key) {
+		int i = this.indexOf(key);
+		return i < 0 ? null : this.files(i);
+	}
+	
+	@Override
+	public Set<Map.Entry<ContentId, Set<File>>> entrySet() {
+		return new AbstractSet<Map.Entry<ContentId, Set<File>>>() {
+			@Override
+			public Iterator<Map.Entry<ContentId, Set<File>>> iterator() {
+				return new Iterator<Map.Entry<ContentId, Set<File>>>() {
+					private int i = 0;
+					
+					@Override
+					public boolean hasNext() {
+						return this.i < PackedFileSet.this.size;
+					}
+					
+					@Override
+					public Map.Entry<ContentId, Set<File>> next() {
+						if(!this.hasNext()) {
+							throw new NoSuchElementException();
+						}
+						int i = this.i++;
+						return new AbstractMap.SimpleImmutableEntry<ContentId, Set<File>>(
+								new ContentId(PackedFileSet.this.highs[i], PackedFileSet.this.lows[i]),
+								PackedFileSet.this.files(i));
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return PackedFileSet.this.size;
+			}
+		};
+	}
+	
+	/**
+	 * Binary search for a content id.
+	 * @return Index of the entry, or -1 if it isn't there.
+	 */
+	private int indexOf(Object key) {
+		if(!(key instanceof ContentId)) {
+			return -1;
+		}
+		long high = ((ContentId) key).getHigh();
+		long low = ((ContentId) key).getLow();
+		
+		int from = 0;
+		int to = this.size - 1;
+		while(from <= to) {
+			int mid = (from + to) >>> 1;
+			int c = compareUnsigned(this.highs[mid], high);
+			if(c == 0) {
+				c = compareUnsigned(this.lows[mid], low);
+			}
+			
+			if(c < 0) {
+				from = mid + 1;
+			}
+			else if(c > 0) {
+				to = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	private Set<File> files(int i) {
+		Set<File> files = new HashSet<File>((this.firstPath[i + 1] - this.firstPath[i]) * 4 / 3 + 1);
+		for(int j = this.firstPath[i]; j < this.firstPath[i + 1]; j++) {
+			files.add(new File(new String(this.bytes, this.pathStart[j], this.pathStart[j + 1] - this.pathStart[j], utf8)));
+		}
+		return Collections.unmodifiableSet(files);
+	}
+	
+	/**
+	 * Merge the sorted path runs of one hash in two file sets,
+	 * adding the paths only in the new set to added and those only in the old set to removed.
+	 */
+	private static void diffPaths(PackedFileSet oldFs, int i, PackedFileSet newFs, int j, Builder added, Builder removed) {
+		int a = oldFs.firstPath[i];
+		int aEnd = oldFs.firstPath[i + 1];
+		int b = newFs.firstPath[j];
+		int bEnd = newFs.firstPath[j + 1];
+		boolean addedStarted = false;
+		boolean removedStarted = false;
+		
+		while(a < aEnd || b < bEnd) {
+			int c;
+			if(a == aEnd) {
+				c = 1;
+			}
+			else if(b == bEnd) {
+				c = -1;
+			}
+			else {
+				c = comparePaths(oldFs.bytes, oldFs.pathStart[a], oldFs.pathStart[a + 1],
+						newFs.bytes, newFs.pathStart[b], newFs.pathStart[b + 1]);
+			}
+			
+			if(c < 0) {
+				if(!removedStarted) {
+					removed.startEntry(oldFs.highs[i], oldFs.lows[i]);
+					removedStarted = true;
+				}
+				removed.addPath(oldFs.bytes, oldFs.pathStart[a], oldFs.pathStart[a + 1] - oldFs.pathStart[a]);
+				a++;
+			}
+			else if(c > 0) {
+				if(!addedStarted) {
+					added.startEntry(newFs.highs[j], newFs.lows[j]);
+					addedStarted = true;
+				}
+				added.addPath(newFs.bytes, newFs.pathStart[b], newFs.pathStart[b + 1] - newFs.pathStart[b]);
+				b++;
+			}
+			else {
+				a++;
+				b++;
+			}
+		}
+	}
+	
+	/**
+	 * Compare two paths by their bytes, unsigned.
+	 */
+	private static int comparePaths(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+		int length = Math.min(aEnd - aStart, bEnd - bStart);
+		for(int n = 0; n < length; n++) {
+			int c = (a[aStart + n] & 0xff) - (b[bStart + n] & 0xff);
+			if(c != 0) {
+				return c;
+			}
+		}
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+	
+	/**
+	 * Quicksort ids into unsigned order, moving order along with them.
+	 */
+	private static void sort(long[] highs, long[] lows, int[] order, int from, int to) {
+		while(to - from > 16) {
+			// Median of three for the pivot, so input that is already sorted isn't the worst case.
+			int mid = (from + to) >>> 1;
+			if(compare(highs, lows, mid, from) < 0) {
+				swap(highs, lows, order, mid, from);
+			}
+			if(compare(highs, lows, to, from) < 0) {
+				swap(highs, lows, order, to, from);
+			}
+			if(compare(highs, lows, to, mid) < 0) {
+				swap(highs, lows, order, to, mid);
+			}
+			long pivotHigh = highs[mid];
+			long pivotLow = lows[mid];
+			
+			int i = from;
+			int j = to;
+			while(i <= j) {
+				while(compare(highs[i], lows[i], pivotHigh, pivotLow) < 0) {
+					i++;
+				}
+				while(compare(highs[j], lows[j], pivotHigh, pivotLow) > 0) {
+					j--;
+				}
+				if(i <= j) {
+					swap(highs, lows, order, i++, j--);
+				}
+			}
+			
+			// Recurse into the smaller half and loop on the larger, so the stack stays shallow.
+			if(j - from < to - i) {
+				sort(highs, lows, order, from, j);
+				from = i;
+			}
+			else {
+				sort(highs, lows, order, i, to);
+				to = j;
+			}
+		}
+		
+		for(int i = from + 1; i <= to; i++) {
+			for(int j = i; j > from && compare(highs, lows, j, j - 1) < 0; j--) {
+				swap(highs, lows, order, j, j - 1);
+			}
+		}
+	}
+	
+	private static int compare(long[] highs, long[] lows, int a, int b) {
+		return compare(highs[a], lows[a], highs[b], lows[b]);
+	}
+	
+	private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+		int c = compareUnsigned(aHigh, bHigh);
+		return c != 0 ? c : compareUnsigned(aLow, bLow);
+	}
+	
+	private static void swap(long[] highs, long[] lows, int[] order, int a, int b) {
+		long high = highs[a];
+		highs[a] = highs[b];
+		highs[b] = high;
+		long low = lows[a];
+		lows[a] = lows[b];
+		lows[b] = low;
+		int o = order[a];
+		order[a] = order[b];
+		order[b] = o;
+	}
+	
+	private static int compareUnsigned(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+	
+	/**
+	 * Builds a packed file set one entry at a time, in order of content id.
+	 */
+	private static final class Builder {
+		private int size = 0;
+		private int paths = 0;
+		private int length = 0;
+		
+		private long[] highs;
+		private long[] lows;
+		private int[] firstPath;
+		private int[] pathStart;
+		private byte[] bytes;
+		
+		Builder(int entries) {
+			this(entries, entries, entries * 32);
+		}
+		
+		Builder(int entries, int paths, int length) {
+			this.highs = new long[entries];
+			this.lows = new long[entries];
+			this.firstPath = new int[entries + 1];
+			this.pathStart = new int[paths + 1];
+			this.bytes = new byte[length];
+		}
+		
+		void startEntry(long high, long low) {
+			if(this.size == this.highs.length) {
+				int capacity = Math.max(16, this.size * 2);
+				this.highs = Arrays.copyOf(this.highs, capacity);
+				this.lows = Arrays.copyOf(this.lows, capacity);
+				this.firstPath = Arrays.copyOf(this.firstPath, capacity + 1);
+			}
+			
+			this.highs[this.size] = high;
+			this.lows[this.size] = low;
+			this.size++;
+			this.firstPath[this.size] = this.paths;
+		}
+		
+		void addPath(byte[] b, int off, int len) {
+			if(this.paths + 1 == this.pathStart.length) {
+				this.pathStart = Arrays.copyOf(this.pathStart, Math.max(16, this.paths * 2) + 1);
+			}
+			if(this.length + len > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.length + len, this.bytes.length * 2));
+			}
+			
+			System.arraycopy(b, off, this.bytes, this.length, len);
+			this.length += len;
+			this.paths++;
+			this.pathStart[this.paths] = this.length;
+			this.firstPath[this.size] = this.paths;
+		}
+		
+		void copyEntry(PackedFileSet from, int i) {
+			this.startEntry(from.highs[i], from.lows[i]);
+			for(int j = from.firstPath[i]; j < from.firstPath[i + 1]; j++) {
+				this.addPath(from.bytes, from.pathStart[j], from.pathStart[j + 1] - from.pathStart[j]);
+			}
+		}
+		
+		PackedFileSet build() {
+			// Trim the arrays down, the set lives a lot longer than the builder.
+			return new PackedFileSet(this.size,
+					this.highs.length == this.size ? this.highs : Arrays.copyOf(this.highs, this.size),
+					this.lows.length == this.size ? this.lows : Arrays.copyOf(this.lows, this.size),
+					this.firstPath.length == this.size + 1 ? this.firstPath : Arrays.copyOf(this.firstPath, this.size + 1),
+					this.pathStart.length == this.paths + 1 ? this.pathStart : Arrays.copyOf(this.pathStart, this.paths + 1),
+					this.bytes.length == this.length ? this.bytes : Arrays.copyOf(this.bytes, this.length));
+		}
+	}
+}
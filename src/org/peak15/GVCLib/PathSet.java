@@ -0,0 +1,235 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The files with one hash, kept as nodes of a PathTrie instead of File objects.
+ * Nearly every hash has one or two files, so they are kept in a small array,
+ * which is only indexed once it gets past a handful.
+ * Files are only built when the set is iterated.
+ */
+public class PathSet extends AbstractSet<File> {
+	private static final int INDEX_THRESHOLD = 8;
+	
+	private final PathTrie paths;
+	private PathTrie.Node[] nodes = new PathTrie.Node[1];
+	private int size = 0;
+	
+	// Only built for the odd hash with lots of files, like an empty file.
+	private Set<PathTrie.Node> index = null;
+	
+	/**
+	 * Create an empty set.
+	 * @param paths Trie the nodes come from, and files added are interned into.
+	 */
+	public PathSet(PathTrie paths) {
+		this.paths = paths;
+	}
+	
+	/**
+	 * Get a set of files as a PathSet of the given trie.
+	 * @param paths Trie the set's nodes have to come from.
+	 * @param files Files in the set.
+	 * @return The files as they are if they already are a PathSet of the trie, otherwise a new PathSet of them.
+	 */
+	public static PathSet of(PathTrie paths, Set<File> files) {
+		if(files instanceof PathSet && ((PathSet) files).paths == paths) {
+			return (PathSet) files;
+		}
+		
+		PathSet set = new PathSet(paths);
+		set.addAll(files);
+		return set;
+	}
+	
+	/**
+	 * Get a copy of this set with more files in it, this set is left unchanged.
+	 * The nodes are copied once, and the new ones added to the end.
+	 * @param files Files to add, those already in the set are skipped.
+	 * @return New set with the files added.
+	 */
+	public PathSet with(Collection<File> files) {
+		PathSet copy = new PathSet(this.paths);
+		copy.nodes = Arrays.copyOf(this.nodes, Math.max(this.size + files.size(), 1));
+		copy.size = this.size;
+		if(this.index != null) {
+			copy.index = new HashSet<PathTrie.Node>(this.index);
+		}
+		
+		if(files instanceof PathSet && ((PathSet) files).paths == this.paths) {
+			PathSet other = (PathSet) files;
+			for(int i = 0; i < other.size; i++) {
+				copy.add(other.nodes[i]);
+			}
+		}
+		else {
+			for(File file : files) {
+				copy.add(this.paths.intern(file));
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * Get a copy of this set with some files taken out of it, this set is left unchanged.
+	 * The nodes are copied once, leaving out the ones removed.
+	 * @param files Files to remove, those not in the set are skipped.
+	 * @return New set with the files removed.
+	 */
+	public PathSet without(Collection<File> files) {
+		PathSet gone;
+		if(files instanceof PathSet && ((PathSet) files).paths == this.paths) {
+			gone = (PathSet) files;
+		}
+		else {
+			gone = new PathSet(this.paths);
+			for(File file : files) {
+				PathTrie.Node node = this.paths.find(file.getPath());
+				if(node != null) {
+					gone.add(node);
+				}
+			}
+		}
+		
+		PathSet copy = new PathSet(this.paths);
+		copy.nodes = new PathTrie.Node[Math.max(this.size, 1)];
+		for(int i = 0; i < this.size; i++) {
+			if(!gone.contains(this.nodes[i])) {
+				copy.nodes[copy.size++] = this.nodes[i];
+			}
+		}
+		if(copy.size > INDEX_THRESHOLD) {
+			copy.index = new HashSet<PathTrie.Node>(Arrays.asList(copy.nodes).subList(0, copy.size));
+		}
+		return copy;
+	}
+	
+	/**
+	 * Add a path to the set.
+	 * @param node Node of the path, from this set's trie.
+	 * @return True if it wasn't already in the set.
+	 */
+	public boolean add(PathTrie.Node node) {
+		if(this.contains(node)) {
+			return false;
+		}
+		
+		if(this.size == this.nodes.length) {
+			this.nodes = Arrays.copyOf(this.nodes, this.size * 2);
+		}
+		this.nodes[this.size++] = node;
+		
+		if(this.index != null) {
+			this.index.add(node);
+		}
+		else if(this.size > INDEX_THRESHOLD) {
+			this.index = new HashSet<PathTrie.Node>(Arrays.asList(this.nodes).subList(0, this.size));
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean add(File file) {
+		return this.add(this.paths.intern(file));
+	}
+	
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof File)) {
+			return false;
+		}
+		
+		PathTrie.Node node = this.paths.find(((File) o).getPath());
+		return node != null && this.contains(node);
+	}
+	
+	@Override
+	public int size() {
+		return this.size;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		// Nodes are interned, so two sets from the same trie can be compared without building any files.
+		if(o instanceof PathSet && ((PathSet) o).paths == this.paths) {
+			PathSet other = (PathSet) o;
+			if(other.size != this.size) {
+				return false;
+			}
+			for(int i = 0; i < other.size; i++) {
+				if(!this.contains(other.nodes[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		return super.equals(o);
+	}
+	
+	@Override
+	public int hashCode() {
+		return super.hashCode();
+	}
+	
+	@Override
+	public Iterator<File> iterator() {
+		return new Iterator<File>() {
+			private int i = 0;
+			private boolean removable = false;
+			
+			@Override
+			public boolean hasNext() {
+				return this.i < PathSet.this.size;
+			}
+			
+			@Override
+			public File next() {
+				if(!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				this.removable = true;
+				return PathSet.this.nodes[this.i++].toFile();
+			}
+			
+			@Override
+			public void remove() {
+				if(!this.removable) {
+					throw new IllegalStateException();
+				}
+				this.removable = false;
+				this.i--;
+				if(PathSet.this.index != null) {
+					PathSet.this.index.remove(PathSet.this.nodes[this.i]);
+				}
+				System.arraycopy(PathSet.this.nodes, this.i + 1, PathSet.this.nodes, this.i, PathSet.this.size - this.i - 1);
+				PathSet.this.nodes[--PathSet.this.size] = null;
+			}
+		};
+	}
+	
+	/**
+	 * Check if a path is in the set.
+	 * @param node Node of the path, from this set's trie.
+	 * @return True if the set has it.
+	 */
+	public boolean contains(PathTrie.Node node) {
+		if(this.index != null) {
+			return this.index.contains(node);
+		}
+		
+		for(int i = 0; i < this.size; i++) {
+			if(this.nodes[i] == node) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
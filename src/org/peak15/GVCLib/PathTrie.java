@@ -0,0 +1,197 @@
+package org.peak15.GVCLib;
+
+import java.io.File;
+
+/**
+ * Paths relative to the root directory, interned into a tree of directories shared by every file set.
+ * Each path is a node holding only its parent and its own name, so the same directory prefix
+ * is stored once no matter how many files are under it, and the same path in two revisions
+ * is the same node. Nodes are never removed, the trie only holds paths that have been seen.
+ * Safe to use from several threads at once.
+ */
+public class PathTrie {
+	private final Node root = new Node(null, "");
+	
+	/**
+	 * One path in the trie. There is only ever one node for a path,
+	 * so nodes can be compared with == and used as keys without building their paths.
+	 */
+	public static final class Node {
+		private final Node parent;
+		private final String name;
+		
+		// Open addressed table of children, a HashMap would take several times the memory per child.
+		private Node[] children = null;
+		private int childCount = 0;
+		
+		private Node(Node parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+		
+		/**
+		 * Get the directory this path is in.
+		 * @return Parent node, or null for the root directory.
+		 */
+		public Node getParent() {
+			return this.parent;
+		}
+		
+		/**
+		 * Get the last part of this path.
+		 * @return File or directory name, empty for the root directory.
+		 */
+		public String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * Get the node for a file or directory in this directory, adding it if it isn't there.
+		 * @param name Name of the file or directory.
+		 * @return Node of the child.
+		 */
+		public synchronized Node child(String name) {
+			if(this.children == null) {
+				this.children = new Node[2];
+			}
+			
+			int slot = this.slot(name);
+			Node child = this.children[slot];
+			if(child == null) {
+				child = new Node(this, name);
+				this.children[slot] = child;
+				
+				// Keep the table at most three quarters full.
+				if(++this.childCount * 4 > this.children.length * 3) {
+					Node[] old = this.children;
+					this.children = new Node[old.length * 2];
+					for(Node n : old) {
+						if(n != null) {
+							this.children[this.slot(n.name)] = n;
+						}
+					}
+				}
+			}
+			return child;
+		}
+		
+		private synchronized Node existingChild(String name) {
+			return this.children == null ? null : this.children[this.slot(name)];
+		}
+		
+		/**
+		 * Find the slot a name is in, or the empty slot it would go in.
+		 */
+		private int slot(String name) {
+			int mask = this.children.length - 1;
+			int h = name.hashCode();
+			int slot = (h ^ (h >>> 16)) & mask;
+			while(this.children[slot] != null && !this.children[slot].name.equals(name)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		/**
+		 * Build the file this node stands for.
+		 * @return File relative to the root directory.
+		 */
+		public File toFile() {
+			return new File(this.toString());
+		}
+		
+		/**
+		 * Build the path this node stands for.
+		 * @return Path relative to the root directory, with the filesystem separator.
+		 */
+		@Override
+		public String toString() {
+			if(this.parent == null) {
+				return "";
+			}
+			
+			// Walk up to the root, then add the names on the way back down.
+			int depth = 0;
+			int length = -1;
+			for(Node n = this; n.parent != null; n = n.parent) {
+				depth++;
+				length += n.name.length() + 1;
+			}
+			
+			String[] names = new String[depth];
+			Node n = this;
+			for(int i = depth - 1; i >= 0; i--) {
+				names[i] = n.name;
+				n = n.parent;
+			}
+			
+			StringBuilder sb = new StringBuilder(length);
+			for(int i = 0; i < depth; i++) {
+				if(i > 0) {
+					sb.append(File.separatorChar);
+				}
+				sb.append(names[i]);
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * Get the node of the root directory itself.
+	 * @return Root node, with an empty path.
+	 */
+	public Node root() {
+		return this.root;
+	}
+	
+	/**
+	 * Get the node for a relative path, adding it if it isn't there.
+	 * @param path Path relative to the root directory, separated by / or the filesystem separator.
+	 * @return Node of the path.
+	 */
+	public Node intern(String path) {
+		Node node = this.root;
+		int start = 0;
+		for(int i = 0; i <= path.length(); i++) {
+			if(i == path.length() || isSeparator(path.charAt(i))) {
+				if(i > start) {
+					node = node.child(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * Get the node for a relative file, adding it if it isn't there.
+	 * @param file File relative to the root directory.
+	 * @return Node of the file.
+	 */
+	public Node intern(File file) {
+		return this.intern(file.getPath());
+	}
+	
+	/**
+	 * Look up a relative path without adding it.
+	 * @param path Path relative to the root directory, separated by / or the filesystem separator.
+	 * @return Node of the path, or null if the trie doesn't have it.
+	 */
+	public Node find(String path) {
+		Node node = this.root;
+		int start = 0;
+		for(int i = 0; i <= path.length() && node != null; i++) {
+			if(i == path.length() || isSeparator(path.charAt(i))) {
+				if(i > start) {
+					node = node.existingChild(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return node;
+	}
+	
+	private static boolean isSeparator(char c) {
+		return c == '/' || c == File.separatorChar;
+	}
+}
@@ -1,56 +1,115 @@
 package org.peak15.GVCLib;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
-import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.MappingJsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
-
-import com.twmacinta.util.MD5;
+import org.peak15.GVCLib.hashers.HashingOutputStream;
 
 /**
  * Contains a list of files that are different from the parent revision.
- * This class is perhaps designed badly, all objects are serialized when they are created,
- * and when an object is loaded so are all of its parents, and all these are stored in memory
- * in their full serialized form. For large repositories this could use a lot of memory.
+ * A revision only knows its parent by hash, the parent is loaded from disk when it is asked for,
+ * so loading a revision reads a single file no matter how long the history is.
+ * Every so often a revision's complete file set is saved as a snapshot, so rebuilding a file set
+ * never has to apply more than a bounded number of diffs.
+ *
+ * For a hash in both the parent and this revision only the paths that changed are listed, and whole
+ * directories that were renamed are recorded once as DirectoryRenames, so moving files costs as much
+ * as the paths moved no matter how many copies of them there are.
+ *
+ * Revisions are stored in a compact binary form, see serialize() for the layout.
+ * Older repositories stored them as pretty printed json, which can still be loaded,
+ * and is still used to export and import revisions.
+ *
+ * A revision's hash is worked out once, from the bytes it is first written as, and is its name from then on.
+ * Json revisions from older repositories, and revisions imported from json, keep the hash they already had
+ * when they are stored in binary, so a revision has the same hash in every repository it is exported to.
+ * So a revision's hash is never checked against its stored bytes, only used to find them.
  */
 public class Revision {
-	private Revision parent;
+	private GVCLib gvclib;
+	private String parentHash;
 	private Date date;
 	private String comment;
 	private String hash;
-	private Map<String, Set<File>> filesAdded;
-	private Map<String, Set<File>> filesRemoved;
+	private Map<ContentId, Set<File>> filesAdded;
+	private Map<ContentId, Set<File>> filesRemoved;
+	private List<DirectoryRename> renames = Collections.emptyList();
+	
+	// How far getFileset() had to go back to find a snapshot.
+	private int diffsSinceSnapshot = 0;
+	private long entriesSinceSnapshot = 0;
+	
+	// Complete file set to snapshot when this revision is saved, if it is due one.
+	private Map<ContentId, Set<File>> pendingSnapshot = null;
+	
+	// Complete file set of a revision made by this process, until a revision is made on top of it.
+	private PackedFileSet packedFileset = null;
+	
+	// Temp file this revision was serialized into when it was created, until it is saved.
+	private File pendingFile = null;
+	
+	private long approximateSize = -1;
+	
+	/**
+	 * Default number of revisions between snapshots, set snapshotInterval in the config to change it.
+	 */
+	public static final long SNAPSHOT_INTERVAL = 64;
 	
-	private String serialized;
+	/**
+	 * Default number of added and removed entries between snapshots,
+	 * set snapshotDiffLimit in the config to change it.
+	 */
+	public static final long SNAPSHOT_DIFF_LIMIT = 65536;
 	
 	private static ObjectMapper objectMapper = new ObjectMapper();
 	private static JsonFactory jsonFactory = new MappingJsonFactory();
+	
+	// File sets use hashes as field names, so interning them only fills up the symbol table.
+	private static JsonFactory jsonParserFactory = new JsonFactory()
+			.configure(JsonParser.Feature.CANONICALIZE_FIELD_NAMES, false);
 	private static DateFormat df = DateFormat.getDateTimeInstance();
+	private static Charset utf8 = Charset.forName("UTF-8");
+	
+	private static final int MAGIC = 0x47564352; // GVCR
+	private static final int VERSION = 2;
 	
 	/**
 	 * Create a revision as a child of another revision.
 	 * @param parent Parent revision, or null if this is the root revision.
 	 */
-	public Revision(GVCLib gvclib, Revision parent, Map<String, Set<File>> fileSet, String comment) throws GVCException {
-		this.parent = parent;
+	public Revision(GVCLib gvclib, Revision parent, Map<ContentId, Set<File>> fileSet, String comment) throws GVCException {
+		this.gvclib = gvclib;
+		this.parentHash = parent == null ? null : parent.getHash();
 		this.date = new Date();
 		this.comment = comment;
 		
@@ -60,104 +119,468 @@ public class Revision {
 		}
 		else {
 			// Diff the given file set with parent's file set to get added and removed.
-			List<Map<String, Set<File>>> diffList = filesetGetDiff(parent.getFileset(gvclib), fileSet);
+			PackedFileSet packed = PackedFileSet.copyOf(fileSet);
+			PackedFileSet parentFs = parent.getPackedFileset();
+			List<Map<ContentId, Set<File>>> diffList = filesetGetDiff(parentFs, packed);
+			this.renames = DirectoryRename.find(parentFs, diffList, gvclib.getPathTrie());
 			this.filesAdded = diffList.get(0);
 			this.filesRemoved = diffList.get(1);
+			
+			// Snapshot this revision if rebuilding its file set would take too many diffs.
+			Config config = gvclib.getConfig();
+			int diffs = parent.diffsSinceSnapshot + 1;
+			long entries = parent.entriesSinceSnapshot + diffEntries(this.filesAdded) + diffEntries(this.filesRemoved);
+			if(diffs >= config.getLong("snapshotInterval", SNAPSHOT_INTERVAL) ||
+					entries >= config.getLong("snapshotDiffLimit", SNAPSHOT_DIFF_LIMIT)) {
+				this.pendingSnapshot = packed;
+			}
+			else {
+				this.diffsSinceSnapshot = diffs;
+				this.entriesSinceSnapshot = entries;
+			}
+			
+			// The next commit diffs against this file set, so it is kept rather than packed again.
+			// Only the newest revision keeps one, so cached revisions don't each hold a whole file set.
+			this.packedFileset = packed;
+			parent.packedFileset = null;
 		}
 		
 		if(this.filesAdded == null && this.filesRemoved == null) {
 			throw new GVCException("Will not create a revision with no changes.");
 		}
 		
-		this.serialize();
-		
-		// Generate hash.
-		MD5 md5 = new MD5();
-	    try {
-			md5.Update(this.serialized, null);
-		} catch (UnsupportedEncodingException e) {
-			throw new GVCException(e);
-		}
-	    this.hash = md5.asHex();
+		// Serialize straight to disk, generating the hash from the bytes as they are written.
+		this.pendingFile = this.createTempFile();
+		this.hash = this.writeTemp(this.pendingFile).toString();
 	}
 	
 	/**
-	 * Loads a revision (and all parents) from a json file.
-	 * @param revF Json file to load revision from.
+	 * Loads a revision from a binary (.rev) or json (.json) file.
+	 * Its parents are not loaded until they are needed.
+	 * @param revF File to load revision from, named after the revision's hash.
 	 */
 	public Revision(GVCLib gvclib, File revF) throws GVCException {
+		this.gvclib = gvclib;
 		
-		JsonNode rootNode;
+		String name = revF.getName();
+		if(name.endsWith(".json")) {
+			this.hash = name.substring(0, name.length() - ".json".length());
+			this.readJson(revF);
+		}
+		else {
+			this.hash = name.substring(0, name.length() - ".rev".length());
+			try {
+				this.readBinary(ByteBuffer.wrap(Files.readAllBytes(revF.toPath())), revF.toString());
+			} catch (IOException e) {
+				throw new GVCException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Loads a revision from its binary form, such as a revision in a pack.
+	 * @param hash Hash of the revision.
+	 * @param in Buffer holding the revision.
+	 */
+	Revision(GVCLib gvclib, String hash, ByteBuffer in) throws GVCException {
+		this.gvclib = gvclib;
+		this.hash = hash;
+		this.readBinary(in, "Revision " + hash);
+	}
+	
+	private void readBinary(ByteBuffer in, String source) throws GVCException {
 		try {
-			rootNode = objectMapper.readValue(revF, JsonNode.class);
-		} catch (Exception e) {
-			throw new GVCException(e);
+			if(in.getInt() != MAGIC) {
+				throw new GVCException(source + " is not a revision.");
+			}
+			int version = Varint.readInt(in);
+			if(version != VERSION) {
+				throw new GVCException(source + " is revision format version " + version +
+						", only version " + VERSION + " is supported.");
+			}
+			
+			if(in.get() != 0) {
+				byte[] parent = new byte[ContentId.LENGTH];
+				in.get(parent);
+				this.parentHash = ContentId.fromBytes(parent).toString();
+			}
+			
+			this.date = new Date(Varint.read(in));
+			
+			byte[] commentB = new byte[Varint.readInt(in)];
+			in.get(commentB);
+			this.comment = new String(commentB, utf8);
+			
+			this.filesAdded = readFileset(in, this.gvclib.getPathTrie());
+			this.filesRemoved = readFileset(in, this.gvclib.getPathTrie());
+			
+			int count = Varint.readInt(in);
+			this.renames = new ArrayList<DirectoryRename>(count);
+			for(int i = 0; i < count; i++) {
+				String from = readString(in);
+				String to = readString(in);
+				List<ContentId> hashes = new ArrayList<ContentId>();
+				for(int j = Varint.readInt(in); j > 0; j--) {
+					hashes.add(new ContentId(in.getLong(), in.getLong()));
+				}
+				this.renames.add(new DirectoryRename(from, to, hashes));
+			}
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new GVCException(source + " is corrupt: " + e);
+		}
+	}
+	
+	private static String readString(ByteBuffer in) {
+		byte[] b = new byte[Varint.readInt(in)];
+		in.get(b);
+		return new String(b, utf8);
+	}
+	
+	private static Map<ContentId, Set<File>> readFileset(ByteBuffer in, PathTrie trie) {
+		if(in.get() == 0) {
+			return null;
 		}
 		
-		// Parent(s)
-		String parentS = rootNode.path("parent").getTextValue();
-		if(parentS.equals("null")) {
-			this.parent = null;
+		// Table of hashes, in order.
+		ContentId[] hashes = new ContentId[Varint.readInt(in)];
+		Map<ContentId, Set<File>> fileSet = new HashMap<ContentId, Set<File>>(hashes.length * 4 / 3 + 1);
+		for(int i = 0; i < hashes.length; i++) {
+			hashes[i] = new ContentId(in.getLong(), in.getLong());
+			fileSet.put(hashes[i], new PathSet(trie));
 		}
-		else {
-			this.parent = new Revision(gvclib, new File(gvclib.getRevisionDirectory().toFile(), parentS + ".json"));
+		
+		// Then the paths in order, each sharing a prefix with the one before it.
+		// Paths are sorted, so runs of them are in the same directory and only its node has to be found once.
+		int paths = Varint.readInt(in);
+		byte[] path = new byte[256];
+		PathTrie.Node dir = null;
+		int dirLength = -1;
+		for(int i = 0; i < paths; i++) {
+			int shared = Varint.readInt(in);
+			int suffix = Varint.readInt(in);
+			if(shared + suffix > path.length) {
+				byte[] bigger = new byte[Math.max(path.length * 2, shared + suffix)];
+				System.arraycopy(path, 0, bigger, 0, shared);
+				path = bigger;
+			}
+			in.get(path, shared, suffix);
+			
+			int slash = shared + suffix - 1;
+			while(slash >= 0 && path[slash] != '/') {
+				slash--;
+			}
+			if(dir == null || slash != dirLength || slash > shared) {
+				dirLength = slash;
+				dir = slash < 0 ? trie.root() : trie.intern(new String(path, 0, slash, utf8));
+			}
+			PathTrie.Node node = dir.child(new String(path, slash + 1, shared + suffix - slash - 1, utf8));
+			
+			((PathSet) fileSet.get(hashes[Varint.readInt(in)])).add(node);
 		}
 		
-		// Date
+		return fileSet;
+	}
+	
+	/**
+	 * Load a json revision in a single pass with Jackson's streaming parser,
+	 * building the file sets as the entries are read rather than going through a tree.
+	 */
+	private void readJson(File revF) throws GVCException {
+		String dateS = null;
+		
+		try (JsonParser jp = jsonParserFactory.createJsonParser(revF)) {
+			if(jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new GVCException(revF + " is not a revision.");
+			}
+			
+			while(jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				jp.nextToken();
+				
+				if(field.equals("parent")) {
+					String parentS = jp.getText();
+					this.parentHash = parentS.equals("null") ? null : parentS;
+				}
+				else if(field.equals("date")) {
+					dateS = jp.getText();
+				}
+				else if(field.equals("comment")) {
+					this.comment = jp.getText();
+				}
+				else if(field.equals("filesAdded")) {
+					this.filesAdded = parseFileset(jp, this.gvclib.getPathTrie());
+				}
+				else if(field.equals("filesRemoved")) {
+					this.filesRemoved = parseFileset(jp, this.gvclib.getPathTrie());
+				}
+				else if(field.equals("renames")) {
+					this.renames = parseRenames(jp);
+				}
+				else {
+					jp.skipChildren();
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		if(dateS == null) {
+			throw new GVCException(revF + " has no date.");
+		}
 		try {
-			this.date = df.parse(rootNode.path("date").getTextValue());
+			this.date = df.parse(dateS);
 		} catch (ParseException e) {
 			throw new GVCException(e);
 		}
+	}
+	
+	/**
+	 * Read a file set object, the parser must be on its first token.
+	 * @return The file set, or null if it was written as "null".
+	 */
+	private static Map<ContentId, Set<File>> parseFileset(JsonParser jp, PathTrie trie) throws IOException, GVCException {
+		if(jp.getCurrentToken() != JsonToken.START_OBJECT) {
+			// The initial revision has "null" instead of files removed.
+			jp.skipChildren();
+			return null;
+		}
 		
-		// Comment
-		this.comment = rootNode.path("comment").getTextValue();
-		
-		// Hash
-		this.hash = revF.getName().replace(".json", "");
+		Map<ContentId, Set<File>> fileSet = new HashMap<ContentId, Set<File>>();
 		
-		// Files Added
-		JsonNode fAddNode = rootNode.path("filesAdded");
-		this.filesAdded = parseFileset(fAddNode);
-		
-		// Files Removed
-		JsonNode fRmNode = rootNode.path("filesRemoved");
-		this.filesRemoved = parseFileset(fRmNode);
+		while(jp.nextToken() == JsonToken.FIELD_NAME) {
+			ContentId fHash;
+			try {
+				fHash = ContentId.fromHex(jp.getCurrentName());
+			} catch (IllegalArgumentException e) {
+				throw new GVCException(e);
+			}
+			
+			PathSet set = (PathSet) fileSet.get(fHash);
+			if(set == null) {
+				set = new PathSet(trie);
+				fileSet.put(fHash, set);
+			}
+			
+			if(jp.nextToken() != JsonToken.START_ARRAY) {
+				throw new GVCException("Expected a list of files for " + fHash);
+			}
+			while(jp.nextToken() != JsonToken.END_ARRAY) {
+				if(jp.getCurrentToken() != JsonToken.VALUE_STRING) {
+					throw new GVCException("Expected a file name for " + fHash);
+				}
+				set.add(trie.intern(jp.getText()));
+			}
+		}
 		
-		// Serialized
-		this.serialized = gvclib.fileToString(revF);
+		return fileSet;
 	}
 	
-	private Map<String, Set<File>> parseFileset(JsonNode fsNode) {
-		Map<String, Set<File>> fileSet = new HashMap<String, Set<File>>();
+	/**
+	 * Read a list of directory renames, the parser must be on its first token.
+	 */
+	private static List<DirectoryRename> parseRenames(JsonParser jp) throws IOException, GVCException {
+		if(jp.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw new GVCException("Expected a list of renames.");
+		}
 		
-		Iterator<String> fHashes = fsNode.getFieldNames();
-		while(fHashes.hasNext()) {
-			String fHash = fHashes.next();
-			JsonNode fNameArray = fsNode.path(fHash);
-			Iterator<JsonNode> fNames = fNameArray.getElements();
-			while(fNames.hasNext()) {
-				String fName = fNames.next().getTextValue();
+		List<DirectoryRename> renames = new ArrayList<DirectoryRename>();
+		while(jp.nextToken() == JsonToken.START_OBJECT) {
+			String from = null;
+			String to = null;
+			List<ContentId> hashes = new ArrayList<ContentId>();
+			
+			while(jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				jp.nextToken();
 				
-				// Is this file already in the set?
-				if(fileSet.containsKey(fHash)) {
-					// Yes, so add this path to it.
-					fileSet.get(fHash).add(new File(fName));
+				if(field.equals("from")) {
+					from = jp.getText();
+				}
+				else if(field.equals("to")) {
+					to = jp.getText();
+				}
+				else if(field.equals("hashes") && jp.getCurrentToken() == JsonToken.START_ARRAY) {
+					while(jp.nextToken() == JsonToken.VALUE_STRING) {
+						try {
+							hashes.add(ContentId.fromHex(jp.getText()));
+						} catch (IllegalArgumentException e) {
+							throw new GVCException(e);
+						}
+					}
 				}
 				else {
-					// Add a new entry to the set.
-					Set<File> set = new HashSet<File>();
-					
-					set.add(new File(fName));
-					fileSet.put(fHash, set);
+					jp.skipChildren();
 				}
 			}
+			
+			if(from == null || to == null) {
+				throw new GVCException("Expected a directory to rename from and to.");
+			}
+			renames.add(new DirectoryRename(from, to, hashes));
 		}
 		
-		return fileSet;
+		return renames;
+	}
+	
+	/**
+	 * Encode this revision in the binary form it is stored and hashed in.
+	 * Revisions that came from json are stored in this form too, but keep the hash of their json.
+	 * All numbers are big endian, lengths and counts are varints, strings are UTF-8.
+	 * <pre>
+	 * int magic "GVCR", varint version
+	 * byte has parent, then the parent's 16 byte hash if it has one
+	 * varint date in milliseconds since the epoch
+	 * varint comment length, comment
+	 * files added, then files removed:
+	 *   byte present (the initial revision has no files removed)
+	 *   varint hash count, then each 16 byte hash in order
+	 *   varint path count, then each path in order:
+	 *     varint bytes shared with the previous path, varint remaining length, remaining bytes
+	 *     varint index of the path's hash in the table above
+	 * varint number of directory renames, each:
+	 *   varint length, directory renamed, varint length, its new name
+	 *   varint hash count, then each 16 byte hash the rename applies to
+	 * </pre>
+	 */
+	private void serialize(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		Varint.write(out, VERSION);
+		
+		if(this.parentHash == null) {
+			out.writeByte(0);
+		}
+		else {
+			out.writeByte(1);
+			out.write(ContentId.fromHex(this.parentHash).toBytes());
+		}
+		
+		Varint.write(out, this.date.getTime());
+		
+		byte[] commentB = this.comment == null ? new byte[0] : this.comment.getBytes(utf8);
+		Varint.write(out, commentB.length);
+		out.write(commentB);
+		
+		writeFileset(out, this.filesAdded);
+		writeFileset(out, this.filesRemoved);
+		
+		Varint.write(out, this.renames.size());
+		for(DirectoryRename rename : this.renames) {
+			writeString(out, rename.getFrom());
+			writeString(out, rename.getTo());
+			Varint.write(out, rename.getHashes().size());
+			for(ContentId fHash : rename.getHashes()) {
+				out.writeLong(fHash.getHigh());
+				out.writeLong(fHash.getLow());
+			}
+		}
 	}
 	
-	private void serialize() throws GVCException {
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(utf8);
+		Varint.write(out, b.length);
+		out.write(b);
+	}
+	
+	private File createTempFile() throws GVCException {
+		try {
+			// In the revision directory, so it can be renamed into place.
+			return File.createTempFile("revision", ".tmp", gvclib.getRevisionDirectory().toFile());
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	/**
+	 * Serialize this revision into a file, hashing it on the way.
+	 * @param tempF File to write to.
+	 * @return Hash of the serialized revision.
+	 */
+	private ContentId writeTemp(File tempF) throws GVCException {
+		HashingOutputStream hashOut = null;
+		try (FileOutputStream fileOut = new FileOutputStream(tempF)) {
+			hashOut = new HashingOutputStream(fileOut, gvclib.getHasher());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(hashOut, 64 * 1024));
+			this.serialize(out);
+			out.flush();
+		}
+		catch (IOException e) {
+			tempF.delete();
+			throw new GVCException(e);
+		}
+		
+		return hashOut.getHash();
+	}
+	
+	/**
+	 * Write this revision to its revision file.
+	 * A newly created revision was already written to a temp file, which is just renamed.
+	 * @param revF File to write to.
+	 */
+	void writeTo(File revF) throws GVCException {
+		if(this.pendingFile == null) {
+			this.pendingFile = this.createTempFile();
+			this.writeTemp(this.pendingFile);
+		}
+		
+		try {
+			Files.move(this.pendingFile.toPath(), revF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.pendingFile = null;
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+	
+	private static void writeFileset(DataOutputStream out, Map<ContentId, Set<File>> fileSet) throws IOException {
+		if(fileSet == null) {
+			out.writeByte(0);
+			return;
+		}
+		out.writeByte(1);
+		
+		// Hashes are written once, in order, and paths refer to them by index.
+		Map<String, Integer> paths = new TreeMap<String, Integer>();
+		Varint.write(out, fileSet.size());
+		int index = 0;
+		for(ContentId fHash : new TreeSet<ContentId>(fileSet.keySet())) {
+			out.writeLong(fHash.getHigh());
+			out.writeLong(fHash.getLow());
+			
+			for(File file : fileSet.get(fHash)) {
+				// Normalize the filesystem separator to /
+				paths.put(file.toString().replace(File.separator, "/"), index);
+			}
+			index++;
+		}
+		
+		// Sorted paths mostly share their directories with the path before them.
+		Varint.write(out, paths.size());
+		byte[] prev = new byte[0];
+		for(Map.Entry<String, Integer> e : paths.entrySet()) {
+			byte[] path = e.getKey().getBytes(utf8);
+			int shared = 0;
+			int max = Math.min(prev.length, path.length);
+			while(shared < max && prev[shared] == path[shared]) {
+				shared++;
+			}
+			
+			Varint.write(out, shared);
+			Varint.write(out, path.length - shared);
+			out.write(path, shared, path.length - shared);
+			Varint.write(out, e.getValue());
+			prev = path;
+		}
+	}
+	
+	/**
+	 * Get this revision as pretty printed json, the form older repositories stored revisions in.
+	 * Used to export revisions, see the export and import commands.
+	 * @return Json form of this revision.
+	 */
+	public String toJson() throws GVCException {
 		JsonGenerator jsonGenerator;
 		StringWriter stringWriter = new StringWriter();
 		try {
@@ -170,10 +593,10 @@ public class Revision {
 		ObjectNode rootNode = objectMapper.createObjectNode();
 		
 		// Parent
-		if(this.parent == null)
+		if(this.parentHash == null)
 			rootNode.put("parent", "null");
 		else
-			rootNode.put("parent", this.parent.getHash());
+			rootNode.put("parent", this.parentHash);
 		
 		// Date
 		rootNode.put("date", df.format(this.date));
@@ -195,13 +618,11 @@ public class Revision {
 		}
 		else {
 			ObjectNode addedOb = rootNode.putObject("filesAdded");
-			for(String fHash : this.filesAdded.keySet()) {
+			for(ContentId fHash : new TreeSet<ContentId>(this.filesAdded.keySet())) {
 				// this will be an array of filenames for this hash
-				ArrayNode aNode = addedOb.putArray(fHash);
+				ArrayNode aNode = addedOb.putArray(fHash.toString());
 				
-				for(File file : this.filesAdded.get(fHash)) {
-					// Normalize the filesystem separator to /
-					String fileS = file.toString().replace(File.separator, "/");
+				for(String fileS : sortedPaths(this.filesAdded.get(fHash))) {
 					aNode.add(fileS);
 				}
 			}
@@ -213,46 +634,87 @@ public class Revision {
 		}
 		else {
 			ObjectNode removedOb = rootNode.putObject("filesRemoved");
-			for(String fHash : this.filesRemoved.keySet()) {
+			for(ContentId fHash : new TreeSet<ContentId>(this.filesRemoved.keySet())) {
 				// this will be an array of filenames for this hash
-				ArrayNode rNode = removedOb.putArray(fHash);
+				ArrayNode rNode = removedOb.putArray(fHash.toString());
 				
-				for(File file : this.filesRemoved.get(fHash)) {
-					// Normalize the filesystem separator to /
-					String fileS = file.toString().replace(File.separator, "/");
+				for(String fileS : sortedPaths(this.filesRemoved.get(fHash))) {
 					rNode.add(fileS);
 				}
 			}
 		}
 		
+		// Directory renames, only there if the revision has any.
+		if(!this.renames.isEmpty()) {
+			ArrayNode renamesNode = rootNode.putArray("renames");
+			for(DirectoryRename rename : this.renames) {
+				ObjectNode renameOb = renamesNode.addObject();
+				renameOb.put("from", rename.getFrom());
+				renameOb.put("to", rename.getTo());
+				ArrayNode hashesNode = renameOb.putArray("hashes");
+				for(ContentId fHash : rename.getHashes()) {
+					hashesNode.add(fHash.toString());
+				}
+			}
+		}
+		
 		// And write it all out to a string.
 		try {
 			jsonGenerator.writeObject(rootNode);
-			this.serialized = stringWriter.getBuffer().toString();
+			return stringWriter.getBuffer().toString();
 		} catch (Exception e) {
 			throw new GVCException(e);
 		}
 	}
 	
+	/**
+	 * Get the paths of a set of files in sorted order, so serialization (and so the
+	 * revision hash) does not depend on the order the files were hashed in.
+	 * @param files Files to get the paths of.
+	 * @return Sorted paths with the filesystem separator normalized to /.
+	 */
+	private static Set<String> sortedPaths(Set<File> files) {
+		Set<String> paths = new TreeSet<String>();
+		for(File file : files) {
+			// Normalize the filesystem separator to /
+			paths.add(file.toString().replace(File.separator, "/"));
+		}
+		return paths;
+	}
+	
 	/**
 	 * Finds files added and removed between two file sets.
-	 * Files whose filenames have changed will be listed in both added and removed.
+	 * For a hash in both sets only the filenames added or removed are listed.
+	 * If both file sets are packed this is a merge of the two, see PackedFileSet.diff.
 	 * @param oldFs File set to compare to.
 	 * @param newFs File set to show differences in.
 	 * @return List where first map is files added and second map is files removed.
 	 */
-	public static List<Map<String, Set<File>>> filesetGetDiff(Map<String, Set<File>> oldFs, Map<String, Set<File>> newFs) {
-		Map<String, Set<File>> added = new HashMap<String, Set<File>>();
-		Map<String, Set<File>> removed = new HashMap<String, Set<File>>();
+	public static List<Map<ContentId, Set<File>>> filesetGetDiff(Map<ContentId, Set<File>> oldFs, Map<ContentId, Set<File>> newFs) {
+		if(oldFs instanceof PackedFileSet && newFs instanceof PackedFileSet) {
+			return PackedFileSet.diff((PackedFileSet) oldFs, (PackedFileSet) newFs);
+		}
+		
+		Map<ContentId, Set<File>> added = new HashMap<ContentId, Set<File>>();
+		Map<ContentId, Set<File>> removed = new HashMap<ContentId, Set<File>>();
 		
 		// Look for files in both sets, and files that are new.
-		for(String hash : newFs.keySet()) {
+		for(ContentId hash : newFs.keySet()) {
 			if(oldFs.containsKey(hash)) {
 				// This file is in both old and new, check if the filenames are different
 				if(!oldFs.get(hash).equals(newFs.get(hash))) {
-					// Filenames have changed, add this to both the removed and added list.
-					removed.put(hash, oldFs.get(hash));
-					added.put(hash, newFs.get(hash));
+					// Filenames have changed, list just the ones that did.
+					Set<File> removedFiles = new HashSet<File>(oldFs.get(hash));
+					removedFiles.removeAll(newFs.get(hash));
+					Set<File> addedFiles = new HashSet<File>(newFs.get(hash));
+					addedFiles.removeAll(oldFs.get(hash));
+					
+					if(!removedFiles.isEmpty()) {
+						removed.put(hash, removedFiles);
+					}
+					if(!addedFiles.isEmpty()) {
+						added.put(hash, addedFiles);
+					}
 				}
 			}
 			else {
@@ -262,14 +724,14 @@ public class Revision {
 		}
 		
 		// Look for files that have been removed.
-		for(String hash : oldFs.keySet()) {
+		for(ContentId hash : oldFs.keySet()) {
 			if(!newFs.containsKey(hash)) {
 				// This file is in the old set but not the new set.
 				removed.put(hash, oldFs.get(hash));
 			}
 		}
 		
-		List<Map<String, Set<File>>> diffList = new ArrayList<Map<String, Set<File>>>();
+		List<Map<ContentId, Set<File>>> diffList = new ArrayList<Map<ContentId, Set<File>>>();
 		diffList.add(added);
 		diffList.add(removed);
 		return diffList;
@@ -277,54 +739,233 @@ public class Revision {
 	
 	/**
 	 * Applies the added and removed maps generated by fileSetGetDiff.
+	 * The given fileset is left unchanged, the result shares everything the diff doesn't touch with it.
+	 * @param fileset Fileset to apply the diff to.
+	 * @param add Map of files to add to the set.
+	 * @param remove Map of files to remove from the set.
+	 * @return Fileset with the diff applied.
+	 */
+	public static FileSetMap filesetApplyDiff(
+			GVCLib gvclib,
+			Map<ContentId, Set<File>> fileset,
+			Map<ContentId, Set<File>> add,
+			Map<ContentId, Set<File>> remove) {
+		return filesetApplyDiff(gvclib, fileset, add, remove, Collections.<DirectoryRename>emptyList());
+	}
+	
+	/**
+	 * Applies a revision's directory renames, then the added and removed maps generated by fileSetGetDiff.
+	 * Only the listed files of each hash are removed or added, the rest of its files are kept.
+	 * The given fileset is left unchanged, the result shares everything the diff doesn't touch with it.
+	 * @param fileset Fileset to apply the diff to.
 	 * @param add Map of files to add to the set.
 	 * @param remove Map of files to remove from the set.
+	 * @param renames Directory renames to apply first.
 	 * @return Fileset with the diff applied.
 	 */
-	public static Map<String, Set<File>> filesetApplyDiff(
+	public static FileSetMap filesetApplyDiff(
 			GVCLib gvclib,
-			Map<String, Set<File>> fileset,
-			Map<String, Set<File>> add,
-			Map<String, Set<File>> remove) {
+			Map<ContentId, Set<File>> fileset,
+			Map<ContentId, Set<File>> add,
+			Map<ContentId, Set<File>> remove,
+			List<DirectoryRename> renames) {
+		FileSetMap result = FileSetMap.copyOf(fileset);
+		PathTrie trie = gvclib.getPathTrie();
 		
-		// Remove files from the set.
-		for(String hash : remove.keySet()) {
-			if(fileset.containsKey(hash)) {
-				fileset.remove(hash);
+		// Move files out of renamed directories.
+		for(DirectoryRename rename : renames) {
+			for(ContentId hash : rename.getHashes()) {
+				Set<File> files = result.get(hash);
+				if(files != null) {
+					result = result.plus(hash, rename.apply(files, trie));
+				}
+				else {
+					gvclib.err.println("Warning: Attempted to rename files of " + hash +
+							"\nin a fileset not containing it.\n" +
+							"There is probably a corrupted revision file. Continuing with remaining files...");
+				}
 			}
-			else {
+		}
+		
+		// Remove files from the set.
+		for(Map.Entry<ContentId, Set<File>> e : remove.entrySet()) {
+			ContentId hash = e.getKey();
+			Set<File> files = result.get(hash);
+			if(files == null) {
 				gvclib.err.println("Warning: Attempted to remove " + hash +
 						"\nfrom a fileset not containing it.\n" +
 						"There is probably a corrupted revision file. Continuing with remaining files...");
+				continue;
+			}
+			
+			PathSet left = PathSet.of(trie, files).without(e.getValue());
+			if(left.size() != files.size() - e.getValue().size()) {
+				gvclib.err.println("Warning: Attempted to remove files of " + hash +
+						"\nfrom a fileset not containing them.\n" +
+						"There is probably a corrupted revision file. Continuing with remaining files...");
+			}
+			
+			if(left.isEmpty()) {
+				result = result.minus(hash);
+			}
+			else {
+				result = result.plus(hash, left);
 			}
 		}
 		
 		// Add files to the set.
-		for(String hash : add.keySet()) {
-			if(!fileset.containsKey(hash)) {
-				fileset.put(hash, add.get(hash));
+		for(Map.Entry<ContentId, Set<File>> e : add.entrySet()) {
+			ContentId hash = e.getKey();
+			Set<File> files = result.get(hash);
+			if(files == null) {
+				result = result.plus(hash, e.getValue());
 			}
 			else {
-				gvclib.err.println("Warning: Attempted to add " + hash +
-						"\nto a fileset already containing it.\n" +
-						"There is probably a corrupted revision file. Continuing with remaining files...");
+				PathSet more = PathSet.of(trie, files).with(e.getValue());
+				if(more.size() != files.size() + e.getValue().size()) {
+					gvclib.err.println("Warning: Attempted to add files of " + hash +
+							"\nto a fileset already containing them.\n" +
+							"There is probably a corrupted revision file. Continuing with remaining files...");
+				}
+				result = result.plus(hash, more);
 			}
 		}
 		
-		return fileset;
+		return result;
 	}
 	
 	/**
 	 * Get the complete fileset of this revision with all parent diffs applied.
+	 * The history is walked back to the nearest snapshot (or the root revision) in a loop
+	 * rather than by recursion, so long histories can't overflow the stack.
+	 * @return Complete fileset of this revision, which can't be modified.
+	 */
+	public FileSetMap getFileset() throws GVCException {
+		SnapshotStore snapshots = gvclib.getSnapshotStore();
+		
+		// Collect the chain of revisions from this one back to a snapshot or the root.
+		List<Revision> chain = new ArrayList<Revision>();
+		FileSetMap fileset = null;
+		Revision rev = this;
+		while(rev != null) {
+			Map<ContentId, Set<File>> snapshot = snapshots.load(rev.getHash());
+			if(snapshot != null) {
+				fileset = FileSetMap.copyOf(snapshot);
+				break;
+			}
+			
+			chain.add(rev);
+			rev = rev.getParent();
+		}
+		
+		if(fileset == null) {
+			// The root revision's added files are its complete file set.
+			Revision root = chain.remove(chain.size() - 1);
+			fileset = FileSetMap.copyOf(root.filesAdded);
+		}
+		
+		// Then apply their diffs starting from the oldest.
+		this.diffsSinceSnapshot = chain.size();
+		this.entriesSinceSnapshot = 0;
+		for(int i = chain.size() - 1; i >= 0; i--) {
+			rev = chain.get(i);
+			fileset = filesetApplyDiff(gvclib, fileset, rev.filesAdded, rev.filesRemoved, rev.renames);
+			this.entriesSinceSnapshot += diffEntries(rev.filesAdded) + diffEntries(rev.filesRemoved);
+		}
+		
+		return fileset;
+	}
+	
+	/**
+	 * Get the complete fileset of this revision packed, to diff a new revision against.
+	 * The file set kept by a revision made by this process, or its snapshot, is used as is,
+	 * and only failing those is the fileset rebuilt and packed.
 	 * @return Complete fileset of this revision.
 	 */
-	public Map<String, Set<File>> getFileset(GVCLib gvclib) {
-		if(this.parent != null) {
-			return filesetApplyDiff(gvclib, parent.getFileset(gvclib), this.filesAdded, this.filesRemoved);
+	PackedFileSet getPackedFileset() throws GVCException {
+		if(this.packedFileset != null) {
+			return this.packedFileset;
 		}
-		else {
-			return this.filesAdded;
+		
+		PackedFileSet snapshot = gvclib.getSnapshotStore().load(this.getHash());
+		if(snapshot != null) {
+			this.diffsSinceSnapshot = 0;
+			this.entriesSinceSnapshot = 0;
+			return snapshot;
 		}
+		return PackedFileSet.copyOf(this.getFileset());
+	}
+	
+	/**
+	 * Get the complete file set to snapshot when this revision is saved.
+	 * The revision lets go of it, so a cached revision doesn't keep a whole file set alive.
+	 * @return This revision's complete file set, or null if it isn't due a snapshot.
+	 */
+	Map<ContentId, Set<File>> takePendingSnapshot() {
+		Map<ContentId, Set<File>> snapshot = this.pendingSnapshot;
+		this.pendingSnapshot = null;
+		return snapshot;
+	}
+	
+	/**
+	 * Roughly how much memory this revision takes up, used to bound the revision cache.
+	 * @return Approximate size in bytes.
+	 */
+	long approximateSize() {
+		if(this.approximateSize < 0) {
+			long size = 256 + (this.comment == null ? 0 : this.comment.length() * 2);
+			for(DirectoryRename rename : this.renames) {
+				size += 128 + (rename.getFrom().length() + rename.getTo().length()) * 2 + rename.getHashes().size() * 48;
+			}
+			this.approximateSize = size + approximateSize(this.filesAdded) + approximateSize(this.filesRemoved);
+		}
+		return this.approximateSize;
+	}
+	
+	private static long approximateSize(Map<ContentId, Set<File>> diff) {
+		if(diff == null) {
+			return 0;
+		}
+		
+		long size = 0;
+		for(Set<File> files : diff.values()) {
+			// Map entry, content id and set.
+			size += 128;
+			for(File file : files) {
+				// Set entry, File and its path.
+				size += 96 + file.getPath().length() * 2;
+			}
+		}
+		return size;
+	}
+	
+	private static long diffEntries(Map<ContentId, Set<File>> diff) {
+		long entries = 0;
+		for(Set<File> files : diff.values()) {
+			entries += files.size();
+		}
+		return entries;
+	}
+	
+	/**
+	 * Load the parent of this revision from disk.
+	 * The parent isn't kept, so holding on to a revision doesn't hold on to its history.
+	 * @return Parent revision, or null if this is the root revision.
+	 */
+	public Revision getParent() throws GVCException {
+		if(this.parentHash == null) {
+			return null;
+		}
+		
+		return gvclib.loadRevision(this.parentHash);
+	}
+	
+	/**
+	 * Get the hash of this revision's parent.
+	 * @return Parent revision's hash, or null if this is the root revision.
+	 */
+	public String getParentHash() {
+		return this.parentHash;
 	}
 	
 	/**
@@ -335,6 +976,43 @@ public class Revision {
 		return this.hash;
 	}
 	
+	/**
+	 * Get the size of this revision's diff.
+	 * @return Number of files added and removed by this revision, plus the hashes its directory renames moved.
+	 */
+	public long getDiffSize() {
+		long size = (this.filesAdded == null ? 0 : diffEntries(this.filesAdded)) +
+				(this.filesRemoved == null ? 0 : diffEntries(this.filesRemoved));
+		for(DirectoryRename rename : this.renames) {
+			size += rename.getHashes().size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Get the files this revision added.
+	 * @return Map with keys as hashes and values as files, for the initial revision its whole file set.
+	 */
+	public Map<ContentId, Set<File>> getFilesAdded() {
+		return this.filesAdded;
+	}
+	
+	/**
+	 * Get the files this revision removed.
+	 * @return Map with keys as hashes and values as files, or null for the initial revision.
+	 */
+	public Map<ContentId, Set<File>> getFilesRemoved() {
+		return this.filesRemoved;
+	}
+	
+	/**
+	 * Get the directories this revision renamed.
+	 * @return Renames applied before the files added and removed, empty if there are none.
+	 */
+	public List<DirectoryRename> getRenames() {
+		return this.renames;
+	}
+	
 	/**
 	 * Get this revision's comment.
 	 * @return This revision's comment.
@@ -352,10 +1030,18 @@ public class Revision {
 	}
 	
 	/**
-	 * Get the serialized form of this revision.
+	 * Get the binary form of this revision, as written to its revision file.
+	 * The bytes aren't kept, they are encoded again on every call.
 	 * @return Serialized form of this revision.
 	 */
-	public String getSerialized() {
-		return this.serialized;
+	public byte[] getSerialized() throws GVCException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			this.serialize(new DataOutputStream(buf));
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		return buf.toByteArray();
 	}
 }
@@ -0,0 +1,67 @@
+package org.peak15.GVCLib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently used revisions, so walking the same history twice doesn't load every revision twice.
+ * Revisions are evicted least recently used first, once there are more than maxEntries of them
+ * or their approximate size passes maxBytes.
+ * Safe to use from several threads at once.
+ */
+public class RevisionCache {
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes = 0;
+	
+	private final LinkedHashMap<String, Revision> revisions = new LinkedHashMap<String, Revision>(16, 0.75f, true);
+	
+	/**
+	 * Create an empty cache.
+	 * @param maxEntries Most revisions to keep.
+	 * @param maxBytes Most memory, roughly, for the kept revisions to take up.
+	 */
+	public RevisionCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Get a cached revision.
+	 * @param hash Hash of the revision.
+	 * @return The revision, or null if it isn't cached.
+	 */
+	public synchronized Revision get(String hash) {
+		return this.revisions.get(hash);
+	}
+	
+	/**
+	 * Add a revision to the cache, evicting older revisions if it is full.
+	 * @param rev Revision to add.
+	 */
+	public synchronized void put(Revision rev) {
+		Revision old = this.revisions.put(rev.getHash(), rev);
+		if(old != null) {
+			this.bytes -= old.approximateSize();
+		}
+		this.bytes += rev.approximateSize();
+		
+		// Evict the least recently used, but always keep the revision just added.
+		Iterator<Map.Entry<String, Revision>> iter = this.revisions.entrySet().iterator();
+		while(this.revisions.size() > 1 &&
+				(this.revisions.size() > this.maxEntries || this.bytes > this.maxBytes)) {
+			Revision evicted = iter.next().getValue();
+			iter.remove();
+			this.bytes -= evicted.approximateSize();
+		}
+	}
+	
+	/**
+	 * Remove every revision from the cache.
+	 */
+	public synchronized void clear() {
+		this.revisions.clear();
+		this.bytes = 0;
+	}
+}
@@ -0,0 +1,293 @@
+package org.peak15.GVCLib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Revisions packed into a single file, .GVC/revisions.pack, instead of one file each.
+ * The pack is append only, revisions are added to the end of it by repacking loose revision files.
+ * .GVC/revisions.idx lists every packed revision's hash, offset and length, sorted by hash,
+ * and is memory mapped so finding a revision is a binary search without touching the filesystem.
+ * Revisions are indexed by the hash in their file name, which for revisions that came from json
+ * isn't the hash of the bytes packed, so it is never checked against them.
+ * <pre>
+ * pack:  int magic "GVCP", int version, then the binary form of each revision
+ * index: int magic "GVCX", int version, int count, then for each revision in order of hash:
+ *        16 byte hash, long offset in the pack, int length
+ * </pre>
+ */
+public class RevisionPack {
+	private static final int PACK_MAGIC = 0x47564350; // GVCP
+	private static final int INDEX_MAGIC = 0x47564358; // GVCX
+	private static final int VERSION = 1;
+	
+	private static final int PACK_HEADER = 8;
+	private static final int INDEX_HEADER = 12;
+	private static final int ENTRY = ContentId.LENGTH + 12;
+	
+	private File packF;
+	private File indexF;
+	
+	// Mapped when first needed, and dropped whenever the pack changes.
+	private ByteBuffer index = null;
+	private ByteBuffer pack = null;
+	
+	/**
+	 * Use the pack and index in the given files, which don't have to exist yet.
+	 * @param packF File revisions are packed into.
+	 * @param indexF Index of the pack.
+	 */
+	public RevisionPack(File packF, File indexF) {
+		this.packF = packF;
+		this.indexF = indexF;
+	}
+	
+	/**
+	 * Get the number of revisions in the pack.
+	 * @return Number of packed revisions.
+	 */
+	public int size() throws GVCException {
+		return this.getIndex().getInt(8);
+	}
+	
+	/**
+	 * Check if a revision is in the pack.
+	 * @param hash Hash of the revision.
+	 * @return True if the revision is packed.
+	 */
+	public boolean contains(String hash) throws GVCException {
+		return this.findEntry(hash) >= 0;
+	}
+	
+	/**
+	 * Find a revision in the pack.
+	 * @param hash Hash of the revision.
+	 * @return Buffer holding the binary form of the revision, or null if it isn't packed.
+	 */
+	public ByteBuffer find(String hash) throws GVCException {
+		int entry = this.findEntry(hash);
+		if(entry < 0) {
+			return null;
+		}
+		
+		ByteBuffer index = this.getIndex();
+		long offset = index.getLong(entry + ContentId.LENGTH);
+		int length = index.getInt(entry + ContentId.LENGTH + 8);
+		
+		ByteBuffer pack = this.getPack(offset + length);
+		if(pack == null) {
+			// Too big to map at once, map just this revision.
+			try (FileChannel fc = FileChannel.open(this.packF.toPath(), StandardOpenOption.READ)) {
+				return fc.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+			catch (IOException e) {
+				throw new GVCException(e);
+			}
+		}
+		
+		ByteBuffer rev = pack.duplicate();
+		rev.position((int) offset);
+		rev.limit((int) offset + length);
+		return rev.slice();
+	}
+	
+	/**
+	 * Append loose revision files to the end of the pack, and add them to the index.
+	 * Revisions already in the pack are skipped. The loose files are left for the caller to delete
+	 * once this returns, until then a crash leaves at worst some unindexed bytes at the end of the pack.
+	 * @param gvclib GVCLib instance, used to convert json revisions.
+	 * @param revFiles Loose revision files, named after their hashes.
+	 * @return Number of revisions added.
+	 */
+	public int append(GVCLib gvclib, List<File> revFiles) throws GVCException {
+		// Every entry of the new index, starting with those already packed.
+		Map<ContentId, long[]> entries = new TreeMap<ContentId, long[]>();
+		ByteBuffer index = this.getIndex();
+		int count = index.getInt(8);
+		for(int i = 0; i < count; i++) {
+			int entry = INDEX_HEADER + i * ENTRY;
+			entries.put(new ContentId(index.getLong(entry), index.getLong(entry + 8)),
+					new long[] {index.getLong(entry + ContentId.LENGTH), index.getInt(entry + ContentId.LENGTH + 8)});
+		}
+		
+		int added = 0;
+		try (FileChannel fc = FileChannel.open(this.packF.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long offset = fc.size();
+			if(offset == 0) {
+				ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+				header.putInt(PACK_MAGIC).putInt(VERSION).flip();
+				while(header.hasRemaining()) {
+					offset += fc.write(header, offset);
+				}
+			}
+			
+			for(File revF : revFiles) {
+				String name = revF.getName();
+				String hash = name.substring(0, name.lastIndexOf('.'));
+				ContentId id = ContentId.fromHex(hash);
+				if(entries.containsKey(id)) {
+					continue;
+				}
+				
+				// Json revisions are packed in the binary form like everything else.
+				ByteBuffer bytes;
+				if(name.endsWith(".json")) {
+					bytes = ByteBuffer.wrap(new Revision(gvclib, revF).getSerialized());
+				}
+				else {
+					bytes = ByteBuffer.wrap(Files.readAllBytes(revF.toPath()));
+				}
+				
+				entries.put(id, new long[] {offset, bytes.remaining()});
+				while(bytes.hasRemaining()) {
+					offset += fc.write(bytes, offset);
+				}
+				added++;
+			}
+			
+			fc.force(true);
+		}
+		catch (IOException | IllegalArgumentException e) {
+			throw new GVCException(e);
+		}
+		
+		this.writeIndex(entries);
+		return added;
+	}
+	
+	private void writeIndex(Map<ContentId, long[]> entries) throws GVCException {
+		File tempF = new File(this.indexF.getParentFile(), this.indexF.getName() + ".tmp");
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempF)))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for(Map.Entry<ContentId, long[]> e : entries.entrySet()) {
+				out.writeLong(e.getKey().getHigh());
+				out.writeLong(e.getKey().getLow());
+				out.writeLong(e.getValue()[0]);
+				out.writeInt((int) e.getValue()[1]);
+			}
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		try {
+			Files.move(tempF.toPath(), this.indexF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		// Map the new files next time they are needed.
+		this.index = null;
+		this.pack = null;
+	}
+	
+	/**
+	 * Binary search the index for a revision.
+	 * @return Position of the revision's entry in the index, or -1 if it isn't there.
+	 */
+	private int findEntry(String hash) throws GVCException {
+		ContentId id;
+		try {
+			id = ContentId.fromHex(hash);
+		}
+		catch (IllegalArgumentException e) {
+			return -1;
+		}
+		
+		ByteBuffer index = this.getIndex();
+		int low = 0;
+		int high = index.getInt(8) - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = INDEX_HEADER + mid * ENTRY;
+			int c = new ContentId(index.getLong(entry), index.getLong(entry + 8)).compareTo(id);
+			if(c < 0) {
+				low = mid + 1;
+			}
+			else if(c > 0) {
+				high = mid - 1;
+			}
+			else {
+				return entry;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private ByteBuffer getIndex() throws GVCException {
+		if(this.index == null) {
+			if(!this.indexF.exists()) {
+				// No pack yet, use an empty index.
+				ByteBuffer empty = ByteBuffer.allocate(INDEX_HEADER);
+				empty.putInt(INDEX_MAGIC).putInt(VERSION).putInt(0).flip();
+				this.index = empty;
+			}
+			else {
+				try (FileChannel fc = FileChannel.open(this.indexF.toPath(), StandardOpenOption.READ)) {
+					this.index = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				}
+				catch (IOException e) {
+					throw new GVCException(e);
+				}
+				
+				if(this.index.capacity() < INDEX_HEADER || this.index.getInt(0) != INDEX_MAGIC ||
+						this.index.getInt(4) != VERSION ||
+						this.index.capacity() < INDEX_HEADER + (long) this.index.getInt(8) * ENTRY) {
+					this.index = null;
+					throw new GVCException(this.indexF + " is corrupt or from an unsupported version.");
+				}
+			}
+		}
+		
+		return this.index;
+	}
+	
+	/**
+	 * Get the whole pack mapped into memory.
+	 * @param end Offset the mapping has to reach.
+	 * @return Mapped pack, or null if it is too big to map at once.
+	 */
+	private ByteBuffer getPack(long end) throws GVCException {
+		if(end > Integer.MAX_VALUE) {
+			return null;
+		}
+		
+		if(this.pack == null || this.pack.capacity() < end) {
+			try (FileChannel fc = FileChannel.open(this.packF.toPath(), StandardOpenOption.READ)) {
+				if(fc.size() > Integer.MAX_VALUE) {
+					return null;
+				}
+				if(fc.size() < end) {
+					throw new GVCException(this.packF + " is shorter than its index says.");
+				}
+				
+				this.pack = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				if(this.pack.getInt(0) != PACK_MAGIC || this.pack.getInt(4) != VERSION) {
+					this.pack = null;
+					throw new GVCException(this.packF + " is corrupt or from an unsupported version.");
+				}
+			}
+			catch (IOException e) {
+				throw new GVCException(e);
+			}
+		}
+		
+		return this.pack;
+	}
+}
@@ -0,0 +1,99 @@
+package org.peak15.GVCLib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Full file sets of some revisions, stored in .GVC/snapshots.
+ * Rebuilding a revision's file set only has to apply the diffs back to the nearest snapshot
+ * instead of all the way back to the initial revision.
+ * Snapshots are a cache, a missing or unreadable one just means more diffs are applied.
+ * <pre>
+ * int magic "GVCS", int version, then the file set as written by PackedFileSet
+ * </pre>
+ */
+public class SnapshotStore {
+	private static final int MAGIC = 0x47564353; // GVCS
+	private static final int VERSION = 2;
+	
+	private File snapDir;
+	
+	/**
+	 * Use the snapshots in the given directory.
+	 * The directory is created when the first snapshot is saved.
+	 * @param snapDir Directory the snapshots are stored in.
+	 */
+	public SnapshotStore(File snapDir) {
+		this.snapDir = snapDir;
+	}
+	
+	/**
+	 * Load the snapshot of a revision.
+	 * @param hash Hash of the revision.
+	 * @return The revision's complete file set, or null if it has no usable snapshot,
+	 * including one that can't be read or is corrupt.
+	 */
+	public PackedFileSet load(String hash) {
+		File snapF = new File(this.snapDir, hash);
+		if(!snapF.exists()) {
+			return null;
+		}
+		
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapF.toPath()));
+			if(in.remaining() < 8 || in.getInt() != MAGIC) {
+				return null;
+			}
+			
+			if(in.getInt() != VERSION) {
+				// Written by some other version, rebuild from the diffs instead.
+				return null;
+			}
+			
+			return PackedFileSet.read(in);
+		}
+		catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			// Truncated or corrupt, which is no worse than missing.
+			return null;
+		}
+	}
+	
+	/**
+	 * Save the snapshot of a revision.
+	 * @param hash Hash of the revision.
+	 * @param fileSet The revision's complete file set.
+	 */
+	public void save(String hash, Map<ContentId, Set<File>> fileSet) throws GVCException {
+		if(!this.snapDir.exists()) {
+			this.snapDir.mkdir();
+		}
+		
+		File snapF = new File(this.snapDir, hash);
+		File tempF = new File(this.snapDir, hash + ".tmp");
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempF)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			PackedFileSet.copyOf(fileSet).writeTo(out);
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+		
+		try {
+			Files.move(tempF.toPath(), snapF.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new GVCException(e);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.peak15.GVCLib;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers for the binary file formats.
+ * Each byte holds 7 bits of the value, least significant first, with the high bit set
+ * on every byte but the last. Small values (lengths, counts) take a single byte.
+ */
+public final class Varint {
+	private Varint() {
+	}
+	
+	/**
+	 * Write a value.
+	 * @param out Output to write to.
+	 * @param v Value to write, negative values take the full 10 bytes.
+	 * @throws IOException
+	 */
+	public static void write(DataOutput out, long v) throws IOException {
+		while((v & ~0x7fL) != 0) {
+			out.writeByte((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+	
+	/**
+	 * Read a value.
+	 * @param in Buffer to read from, its position is advanced past the value.
+	 * @return The value.
+	 * @throws IllegalArgumentException If the value is longer than 10 bytes.
+	 */
+	public static long read(ByteBuffer in) {
+		long v = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			if(b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint.");
+	}
+	
+	/**
+	 * Read a value that must fit in a non-negative int, such as a length or count.
+	 * @param in Buffer to read from, its position is advanced past the value.
+	 * @return The value.
+	 * @throws IllegalArgumentException If the value doesn't fit.
+	 */
+	public static int readInt(ByteBuffer in) {
+		long v = read(in);
+		if(v < 0 || v > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Varint out of range: " + v);
+		}
+		return (int) v;
+	}
+}
@@ -0,0 +1,386 @@
+package org.peak15.GVCLib.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.peak15.GVCLib.*;
+
+/**
+ * Command to change the files in the root directory to those of another revision.
+ * Only the paths that differ are touched, so moving between nearby revisions
+ * costs as much as the files that changed between them, not the whole tree.
+ * Files can also be hard linked to their blobs, which costs next to nothing,
+ * but leaves them read only.
+ *
+ * Every added file is written to a temp file next to it before anything in the tree is touched,
+ * so running out of space or a missing blob leaves the tree as it was.
+ * Only then are removed files deleted and the temp files renamed into place.
+ */
+public class Checkout implements Command {
+	
+	private static final String name = "checkout";
+	private static final String help = "Changes the files in the repository to those of the given revision,\n" +
+			"and makes it the current revision. Only files that differ are deleted or restored.\n" +
+			"Refuses to run if there are uncommitted changes, unless -f is given,\n" +
+			"in which case they are lost.\n" +
+			"With -l, or checkoutMode=link in the config, files are hard linked to the filestore\n" +
+			"instead of copied, which is much faster and takes no space, but the files are read only.\n" +
+			"Files that can't be linked are copied.\n" +
+			"Usage: checkout [-f] [-l] hash";
+	
+	private GVCLib gvclib;
+	
+	/**
+	 * Create an instance of the checkout command using the specified GVCLib instance.
+	 * @param gvclib
+	 */
+	public Checkout(GVCLib gvclib) {
+		this.gvclib = gvclib;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getHelp() {
+		return help;
+	}
+	
+	@Override
+	public boolean run(String[] args) throws GVCException {
+		boolean force = false;
+		boolean link = false;
+		String hash = null;
+		if(args != null) {
+			for(String arg : args) {
+				if(arg.equals("-f")) {
+					force = true;
+				}
+				else if(arg.equals("-l")) {
+					link = true;
+				}
+				else {
+					hash = arg;
+				}
+			}
+		}
+		
+		if(hash == null) {
+			gvclib.err.println("You must specify a revision.");
+			return false;
+		}
+		
+		if(!gvclib.findRootDirectory()) {
+			gvclib.err.println("Could not find the root directory," +
+					"this must not be a GVC repository.");
+			return false;
+		}
+		
+		if(gvclib.getCurrentRevision() == null) {
+			gvclib.err.println("There is no current revision,\n" +
+					"this GVC repositroy must be broken.");
+			return false;
+		}
+		
+		link |= gvclib.getConfig().get("checkoutMode", "copy").equals("link");
+		
+		if(!gvclib.hasRevision(hash)) {
+			gvclib.err.println("There is no revision " + hash);
+			return false;
+		}
+		
+		FileIndex index = gvclib.loadFileIndex();
+		Map<ContentId, Set<File>> working = gvclib.getFileSet(index, false);
+		
+		if(!force) {
+			List<Map<ContentId, Set<File>>> changes = Revision.filesetGetDiff(gvclib.getCurrentRevision().getFileset(), working);
+			if(!changes.get(0).isEmpty() || !changes.get(1).isEmpty()) {
+				gvclib.err.println("There are uncommitted changes, commit them first or use -f to lose them.");
+				index.save();
+				return false;
+			}
+		}
+		
+		Revision target = gvclib.loadRevision(hash);
+		List<Map<ContentId, Set<File>>> diff = Revision.filesetGetDiff(working, target.getFileset());
+		Map<ContentId, Set<File>> added = diff.get(0);
+		Map<ContentId, Set<File>> removed = diff.get(1);
+		
+		// Everything has to come from somewhere before anything is deleted.
+		FileStore store = gvclib.getFileStore();
+		for(ContentId h : added.keySet()) {
+			if(!store.contains(h) && this.keptFile(h, working, removed) == null) {
+				gvclib.err.println("The filestore does not have " + h + ", can't check out " + hash);
+				index.save();
+				return false;
+			}
+		}
+		
+		List<Staged> staged;
+		try {
+			staged = this.stage(added, working, removed, link);
+		}
+		catch (GVCException e) {
+			index.save();
+			gvclib.err.println("Could not check out " + hash + ", the working tree was not changed.");
+			throw e;
+		}
+		
+		try {
+			this.delete(removed);
+			this.place(staged, index);
+		}
+		catch (GVCException e) {
+			discard(staged);
+			index.save();
+			String current = gvclib.getCurrentRevisionHash();
+			gvclib.err.println("Checkout of " + hash + " stopped part way, the working tree is now partly in revision " +
+					current + "\nand partly in " + hash + ". Use checkout -f with either one to finish.");
+			throw e;
+		}
+		
+		index.save();
+		gvclib.setCurrentRevision(target);
+		
+		return true;
+	}
+	
+	/**
+	 * Find a file in the working tree with a hash that the checkout leaves alone.
+	 * @return Path of the file relative to the root directory, or null if there isn't one.
+	 */
+	private File keptFile(ContentId hash, Map<ContentId, Set<File>> working, Map<ContentId, Set<File>> removed) {
+		Set<File> files = working.get(hash);
+		if(files == null) {
+			return null;
+		}
+		
+		Set<File> gone = removed.get(hash);
+		for(File file : files) {
+			if(gone == null || !gone.contains(file)) {
+				return file;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Delete removed files, and any directories left empty by them.
+	 */
+	private void delete(Map<ContentId, Set<File>> removed) throws GVCException {
+		Set<File> dirs = new HashSet<File>();
+		for(Set<File> files : removed.values()) {
+			for(File rel : files) {
+				File file = gvclib.makeAbsolute(rel);
+				if(!file.delete() && file.exists()) {
+					throw new GVCException("Could not delete " + file);
+				}
+				dirs.add(file.getParentFile());
+			}
+		}
+		
+		File root = gvclib.getRootDirectory().toFile();
+		for(File dir : dirs) {
+			// Only empty directories can be deleted, so this stops at the first one with anything left in it.
+			while(dir != null && !dir.equals(root) && dir.delete()) {
+				dir = dir.getParentFile();
+			}
+		}
+	}
+	
+	/**
+	 * Restore added files into temp files on the hasher threads, a hash at a time.
+	 * Each temp file is made in the nearest directory of its target that exists already,
+	 * so it can be renamed into place without copying it again.
+	 * The first file of a hash is copied from the filestore, the rest from that first file.
+	 * When linking, every file is linked to the blob, and only copied if that fails.
+	 * If anything can't be restored, every temp file is deleted again.
+	 * @return The temp files, and where each one goes.
+	 */
+	private List<Staged> stage(Map<ContentId, Set<File>> added, final Map<ContentId, Set<File>> working,
+			final Map<ContentId, Set<File>> removed, final boolean link) throws GVCException {
+		final FileStore store = gvclib.getFileStore();
+		
+		List<Callable<List<Staged>>> tasks = new ArrayList<Callable<List<Staged>>>(added.size());
+		for(Map.Entry<ContentId, Set<File>> e : added.entrySet()) {
+			final ContentId hash = e.getKey();
+			final Set<File> files = e.getValue();
+			tasks.add(new Callable<List<Staged>>() {
+				@Override
+				public List<Staged> call() throws GVCException, IOException {
+					List<Staged> done = new ArrayList<Staged>(files.size());
+					try {
+						Path restored = null;
+						for(File rel : files) {
+							Path target = gvclib.makeAbsolute(rel.toPath());
+							Path temp = Files.createTempFile(existingDirectory(target), ".gvc-checkout-", ".tmp");
+							done.add(new Staged(rel, hash, temp, target));
+							
+							if(link && store.contains(hash) && store.link(hash, temp)) {
+								// Linked to the blob, nothing to copy.
+							}
+							else if(restored != null) {
+								FileStore.copy(restored, temp);
+							}
+							else if(store.contains(hash)) {
+								store.restore(hash, temp);
+							}
+							else {
+								// Content from before the filestore was populated, checked to be in the working tree.
+								FileStore.copy(gvclib.makeAbsolute(keptFile(hash, working, removed).toPath()), temp);
+							}
+							restored = temp;
+						}
+						return done;
+					}
+					catch (GVCException | IOException | RuntimeException ex) {
+						discard(done);
+						throw ex;
+					}
+				}
+			});
+		}
+		
+		List<Staged> staged = new ArrayList<Staged>();
+		Throwable failure = null;
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, gvclib.getHashThreads()));
+		try {
+			// Every task is waited for, so none is left writing temp files after a failure.
+			for(Future<List<Staged>> f : pool.invokeAll(tasks)) {
+				try {
+					staged.addAll(f.get());
+				} catch (ExecutionException e) {
+					if(failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = e;
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		if(failure != null) {
+			discard(staged);
+			// The pool wraps what a task threw in RuntimeExceptions.
+			while(failure instanceof RuntimeException && failure.getCause() != null) {
+				failure = failure.getCause();
+			}
+			if(failure instanceof GVCException) {
+				throw (GVCException) failure;
+			}
+			if(failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new GVCException((Exception) failure);
+		}
+		return staged;
+	}
+	
+	/**
+	 * Rename temp files into place, making any directories they need.
+	 * Empty directories in the way, such as those left by a checkout that stopped part way, are deleted.
+	 */
+	private void place(List<Staged> staged, FileIndex index) throws GVCException {
+		PathTrie paths = gvclib.getPathTrie();
+		for(Staged s : staged) {
+			try {
+				Files.createDirectories(s.target.getParent());
+				if(Files.isDirectory(s.target, LinkOption.NOFOLLOW_LINKS)) {
+					deleteEmptyDirectories(s.target);
+				}
+				Files.move(s.temp, s.target, StandardCopyOption.REPLACE_EXISTING);
+				s.placed = true;
+				
+				// Restored files don't need to be hashed again by the next commit.
+				index.update(paths.intern(s.rel), Files.readAttributes(s.target, BasicFileAttributes.class), s.hash);
+			}
+			catch (IOException e) {
+				throw new GVCException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Delete a directory if there is nothing but empty directories in it.
+	 */
+	private static void deleteEmptyDirectories(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+				try {
+					Files.delete(d);
+				}
+				catch (DirectoryNotEmptyException ex) {
+					// Something in it, it stays.
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	/**
+	 * Delete temp files that haven't been renamed into place.
+	 */
+	private static void discard(List<Staged> staged) {
+		for(Staged s : staged) {
+			if(!s.placed) {
+				try {
+					Files.deleteIfExists(s.temp);
+				}
+				catch (IOException e) {
+					// Left behind, nothing else to do about it.
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Find the nearest directory of a path that exists, which is at worst the root directory.
+	 */
+	private static Path existingDirectory(Path target) {
+		Path dir = target.getParent();
+		while(!Files.isDirectory(dir)) {
+			dir = dir.getParent();
+		}
+		return dir;
+	}
+	
+	/**
+	 * A restored file waiting to be renamed into place.
+	 */
+	private static class Staged {
+		final File rel;
+		final ContentId hash;
+		final Path temp;
+		final Path target;
+		boolean placed = false;
+		
+		Staged(File rel, ContentId hash, Path temp, Path target) {
+			this.rel = rel;
+			this.hash = hash;
+			this.temp = temp;
+			this.target = target;
+		}
+	}
+}
@@ -42,7 +42,8 @@ public class Commit implements Command {
 			return false;
 		}
 		
-		Revision newRev = new Revision(gvclib, gvclib.getCurrentRevision(), gvclib.getFileSet(), args[0]);
+		Revision newRev = new Revision(gvclib, gvclib.getCurrentRevision(), gvclib.getFileSet(true), args[0]);
+		gvclib.storeFiles(newRev);
 		gvclib.setCurrentRevision(newRev);
 		gvclib.saveRevision(newRev);
 		
@@ -1,15 +1,23 @@
 package org.peak15.GVCLib.commands;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.peak15.GVCLib.ContentId;
 import org.peak15.GVCLib.GVCException;
 import org.peak15.GVCLib.GVCLib;
 
+import com.twmacinta.util.MD5;
+
 public class Debug implements Command {
 	
+	private static final int ALLOC_ROUNDS = 1000000;
+	
 	private GVCLib gvclib;
 	
 	public Debug(GVCLib gvclib) {
@@ -23,7 +31,10 @@ public class Debug implements Command {
 
 	@Override
 	public String getHelp() {
-		return "Debugging functions.";
+		return "Debugging functions.\n" +
+				"Usage: debug fileset - prints the working tree's file set\n" +
+				"       debug alloc - checks that MD5 hashing allocates nothing once an MD5 object exists,\n" +
+				"                     fails if the java or native backend allocates anything";
 	}
 
 	@Override
@@ -32,6 +43,9 @@ public class Debug implements Command {
 				if(args[0].equals("fileset")) {
 					fileSet();
 				}
+				else if(args[0].equals("alloc")) {
+					alloc();
+				}
 			}
 		return true;
 	}
@@ -46,8 +60,63 @@ public class Debug implements Command {
 		}
 		gvclib.out.println("root directory: " + gvclib.getRootDirectory().toString());
 		
-		Map<String, Set<File>> fileSet = gvclib.getFileSet();
+		Map<ContentId, Set<File>> fileSet = gvclib.getFileSet();
 		gvclib.printFileSet(fileSet);
 	}
 	
+	/**
+	 * Check that hashing allocates nothing once an MD5 object exists, with the java and native backends.
+	 * Each round is a full Init, Update, Final and asHex of 1000 bytes, into arrays made up front.
+	 * The jdk backend is left out, its Final() has to finish a clone of its MessageDigest.
+	 * @throws GVCException If a backend allocated anything, or allocations can't be counted.
+	 */
+	private void alloc() throws GVCException {
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			throw new GVCException("This JVM can't count allocated bytes, so allocations can't be checked.");
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		byte[] data = new byte[1000];
+		byte[] hash = new byte[16];
+		char[] hex = new char[32];
+		int selected = MD5.getBackend();
+		List<String> failed = new ArrayList<String>();
+		try {
+			for(int b : new int[] {MD5.BACKEND_JAVA, MD5.BACKEND_NATIVE}) {
+				String name = MD5.getBackendName(b);
+				if(!MD5.setBackend(b)) {
+					gvclib.out.println(name + ": not available, not checked");
+					continue;
+				}
+				
+				MD5 md5 = new MD5();
+				// Once to warm up, so the JIT and its allocations are done before counting.
+				long before = 0;
+				for(int pass = 0; pass < 2; pass++) {
+					before = threads.getThreadAllocatedBytes(thread);
+					for(int i = 0; i < ALLOC_ROUNDS; i++) {
+						md5.Init();
+						md5.Update(data, data.length);
+						md5.Final(hash, 0);
+						MD5.asHex(hash, hex, 0);
+					}
+				}
+				long bytes = threads.getThreadAllocatedBytes(thread) - before;
+				gvclib.out.println(name + ": " + bytes + " bytes in " + ALLOC_ROUNDS + " hashes, " + (bytes == 0 ? "ok" : "FAILED"));
+				if(bytes != 0) {
+					failed.add(name);
+				}
+			}
+			gvclib.out.println(MD5.getBackendName(MD5.BACKEND_JDK) + ": not checked, Final() clones its MessageDigest");
+		}
+		finally {
+			MD5.setBackend(selected);
+		}
+		
+		if(!failed.isEmpty()) {
+			throw new GVCException("MD5 hashing allocated memory with the " + failed + " backends.");
+		}
+	}
+
 }
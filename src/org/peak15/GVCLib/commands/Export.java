@@ -0,0 +1,70 @@
+package org.peak15.GVCLib.commands;
+
+import java.io.File;
+
+import org.peak15.GVCLib.GVCException;
+import org.peak15.GVCLib.GVCLib;
+import org.peak15.GVCLib.Revision;
+
+/**
+ * Command to write the repository's history out as json revision files.
+ */
+public class Export implements Command {
+	
+	private static final String name = "export";
+	private static final String help = "Writes every revision up to the current one into a directory\n" +
+			"as json files, which can be read back with import.\n" +
+			"Usage: export directory";
+	
+	private GVCLib gvclib;
+	
+	/**
+	 * Create an instance of the export command using the specified GVCLib instance.
+	 * @param gvclib
+	 */
+	public Export(GVCLib gvclib) {
+		this.gvclib = gvclib;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getHelp() {
+		return help;
+	}
+	
+	@Override
+	public boolean run(String[] args) throws GVCException {
+		if(args == null || args.length <= 0) {
+			gvclib.err.println("You must specify a directory.");
+			return false;
+		}
+		
+		if(!gvclib.findRootDirectory()) {
+			gvclib.err.println("Could not find the root directory," + 
+					"this must not be a GVC repository.");
+			return false;
+		}
+		
+		File dir = new File(args[0]);
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			gvclib.err.println("Could not create " + dir);
+			return false;
+		}
+		
+		int count = 0;
+		Revision rev = gvclib.getCurrentRevision();
+		while(rev != null) {
+			gvclib.stringToFile(rev.toJson(), new File(dir, rev.getHash() + ".json"));
+			count++;
+			rev = rev.getParent();
+		}
+		
+		gvclib.out.println("Exported " + count + " revisions.");
+		return true;
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.peak15.GVCLib.commands;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import org.peak15.GVCLib.ContentId;
+import org.peak15.GVCLib.GVCException;
+import org.peak15.GVCLib.GVCLib;
+import org.peak15.GVCLib.Revision;
+
+/**
+ * Command to read json revision files into the repository.
+ * Imported revisions are stored in binary, but keep the hash they were exported with,
+ * so that the same revision has the same hash in every repository, and their children still find them.
+ */
+public class Import implements Command {
+	
+	private static final String name = "import";
+	private static final String help = "Reads the json revision files in a directory, as written by export,\n" +
+			"into the repository. Revisions keep the hash they were exported with,\n" +
+			"so they have the same hash in every repository.\n" +
+			"Usage: import directory";
+	
+	private GVCLib gvclib;
+	
+	/**
+	 * Create an instance of the import command using the specified GVCLib instance.
+	 * @param gvclib
+	 */
+	public Import(GVCLib gvclib) {
+		this.gvclib = gvclib;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getHelp() {
+		return help;
+	}
+	
+	@Override
+	public boolean run(String[] args) throws GVCException {
+		if(args == null || args.length <= 0) {
+			gvclib.err.println("You must specify a directory.");
+			return false;
+		}
+		
+		if(!gvclib.findRootDirectory()) {
+			gvclib.err.println("Could not find the root directory," + 
+					"this must not be a GVC repository.");
+			return false;
+		}
+		
+		File[] files = new File(args[0]).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".json");
+			}
+		});
+		if(files == null) {
+			gvclib.err.println(args[0] + " is not a directory.");
+			return false;
+		}
+		
+		int count = 0;
+		for(File file : files) {
+			// The name is the revision's hash, which everything else takes on trust.
+			String hash = file.getName().substring(0, file.getName().length() - ".json".length());
+			if(!isHash(hash)) {
+				gvclib.err.println("Skipping " + file + ", its name is not a revision hash.");
+				continue;
+			}
+			
+			Revision rev = new Revision(gvclib, file);
+			if(!gvclib.hasRevision(rev.getHash())) {
+				gvclib.saveRevision(rev);
+				count++;
+			}
+		}
+		
+		gvclib.out.println("Imported " + count + " revisions.");
+		return true;
+	}
+	
+	/**
+	 * Check if a string is a hash the way the repository writes them, lower case hex of the right length.
+	 */
+	private static boolean isHash(String hash) {
+		try {
+			return ContentId.fromHex(hash).toString().equals(hash);
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+}
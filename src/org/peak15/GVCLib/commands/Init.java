@@ -10,7 +10,10 @@ import org.peak15.GVCLib.*;
 public class Init implements Command {
 	
 	private static final String name = "init";
-	private static final String help = "Initializes a GVC repository in the current directory.";
+	private static final String help = "Initializes a GVC repository in the current directory.\n" +
+			"The hash used to identify files can be md5 (the default), sha256 or xxh128.\n" +
+			"xxh128 is much faster, but is not a cryptographic hash, only use it for trusted files.\n" +
+			"Usage: init [hash]";
 	
 	private GVCLib gvclib;
 	
@@ -41,16 +44,27 @@ public class Init implements Command {
 			return false;
 		}
 		
+		// Make sure the hash exists before creating anything.
+		String hash = null;
+		if(args != null && args.length > 0) {
+			hash = gvclib.getHasher(args[0]).getName();
+		}
+		
 		GVCDir.mkdir();
 		gvclib.findRootDirectory(currentDir);
 		
-		Map<String, Set<File>> fileSet = gvclib.getFileSet();
+		if(hash != null) {
+			gvclib.setHasher(hash);
+		}
+		
+		Map<ContentId, Set<File>> fileSet = gvclib.getFileSet(true);
 		
 		//gvclib.out.println("Current file set:");
 		//gvclib.printFileSet(fileSet);
 		
 		Revision rev = new Revision(gvclib, null, fileSet, "Initial revision.");
 		
+		gvclib.storeFiles(rev);
 		gvclib.saveRevision(rev);
 		gvclib.setCurrentRevision(rev);
 		
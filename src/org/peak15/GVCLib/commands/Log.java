@@ -0,0 +1,98 @@
+package org.peak15.GVCLib.commands;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import org.peak15.GVCLib.CommitGraph;
+import org.peak15.GVCLib.GVCException;
+import org.peak15.GVCLib.GVCLib;
+
+/**
+ * Command to list the history of the current revision.
+ */
+public class Log implements Command {
+	
+	private static final String name = "log";
+	private static final String help = "Lists revisions, newest first, starting from the current revision.\n" +
+			"Shows each revision's hash, date and number of files added and removed,\n" +
+			"and with -c its comment as well, which is slower as every revision has to be loaded.\n" +
+			"Usage: log [-c] [count]";
+	
+	private static final int DEFAULT_COUNT = 20;
+	
+	private GVCLib gvclib;
+	
+	/**
+	 * Create an instance of the log command using the specified GVCLib instance.
+	 * @param gvclib
+	 */
+	public Log(GVCLib gvclib) {
+		this.gvclib = gvclib;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getHelp() {
+		return help;
+	}
+	
+	@Override
+	public boolean run(String[] args) throws GVCException {
+		boolean comments = false;
+		int count = DEFAULT_COUNT;
+		if(args != null) {
+			for(String arg : args) {
+				if(arg.equals("-c")) {
+					comments = true;
+				}
+				else {
+					try {
+						count = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						gvclib.err.println("Not a number of revisions: " + arg);
+						return false;
+					}
+				}
+			}
+		}
+		
+		if(!gvclib.findRootDirectory()) {
+			gvclib.err.println("Could not find the root directory," + 
+					"this must not be a GVC repository.");
+			return false;
+		}
+		
+		String current = gvclib.getCurrentRevisionHash();
+		if(current == null) {
+			gvclib.err.println("There is no current revision,\n" +
+					"this GVC repositroy must be broken.");
+			return false;
+		}
+		
+		CommitGraph graph = gvclib.getCommitGraph();
+		DateFormat df = DateFormat.getDateTimeInstance();
+		StringBuilder sb = new StringBuilder();
+		
+		int pos = graph.indexOf(current);
+		for(int i = 0; i < count && pos >= 0; i++) {
+			String hash = graph.getHash(pos);
+			sb.append(hash).append("  ");
+			sb.append(df.format(new Date(graph.getDate(pos)))).append("  ");
+			sb.append(graph.getDiffSize(pos)).append(" changed");
+			if(comments) {
+				sb.append("\n    ").append(gvclib.loadRevision(hash).getComment());
+			}
+			sb.append('\n');
+			
+			pos = graph.getParent(pos);
+		}
+		
+		gvclib.out.print(sb);
+		return true;
+	}
+
+}
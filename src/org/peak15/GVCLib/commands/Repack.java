@@ -0,0 +1,74 @@
+package org.peak15.GVCLib.commands;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.peak15.GVCLib.GVCException;
+import org.peak15.GVCLib.GVCLib;
+
+/**
+ * Command to move loose revision files into the revision pack.
+ */
+public class Repack implements Command {
+	
+	private static final String name = "repack";
+	private static final String help = "Moves every loose revision file into the revision pack,\n" +
+			"so history can be read without opening a file per revision.\n" +
+			"Usage: repack";
+	
+	private GVCLib gvclib;
+	
+	/**
+	 * Create an instance of the repack command using the specified GVCLib instance.
+	 * @param gvclib
+	 */
+	public Repack(GVCLib gvclib) {
+		this.gvclib = gvclib;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String getHelp() {
+		return help;
+	}
+	
+	@Override
+	public boolean run(String[] args) throws GVCException {
+		if(!gvclib.findRootDirectory()) {
+			gvclib.err.println("Could not find the root directory," + 
+					"this must not be a GVC repository.");
+			return false;
+		}
+		
+		File[] loose = gvclib.getRevisionDirectory().toFile().listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".rev") || name.endsWith(".json");
+			}
+		});
+		if(loose == null) {
+			gvclib.err.println("Could not read " + gvclib.getRevisionDirectory() + ".");
+			return false;
+		}
+		List<File> revFiles = Arrays.asList(loose);
+		
+		int added = gvclib.getRevisionPack().append(gvclib, revFiles);
+		
+		// Only now that the pack's index includes them is it safe to remove the loose files.
+		for(File revF : revFiles) {
+			if(!revF.delete()) {
+				gvclib.err.println("Warning: Could not delete " + revF);
+			}
+		}
+		
+		gvclib.out.println("Packed " + added + " revisions, " + gvclib.getRevisionPack().size() + " in total.");
+		return true;
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.peak15.GVCLib.hashers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.peak15.GVCLib.ContentId;
+
+/**
+ * An algorithm used to identify file contents.
+ * A repository picks its hasher when it is initialized, every hash in it
+ * (files and revisions alike) comes from that hasher.
+ * Every hasher produces 128 bit hashes, held as ContentIds.
+ */
+public abstract class ContentHasher {
+	/**
+	 * Length in bytes of every hash.
+	 */
+	public static final int HASH_LENGTH = ContentId.LENGTH;
+	
+	private static final long MAP_THRESHOLD = 16 * 1024 * 1024;
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+	
+	private static final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		}
+	};
+	
+	/**
+	 * An in progress hash of a stream of bytes.
+	 */
+	public interface Digest {
+		/**
+		 * Add bytes to the hash.
+		 * @param b Array holding the bytes.
+		 * @param off Offset of the first byte.
+		 * @param len Number of bytes.
+		 */
+		public void update(byte[] b, int off, int len);
+		
+		/**
+		 * Add the remaining bytes of a buffer to the hash.
+		 * The buffer's position is advanced to its limit.
+		 * @param buf Buffer holding the bytes.
+		 */
+		public void update(ByteBuffer buf);
+		
+		/**
+		 * Finish the hash.
+		 * @return Hash of every byte added, HASH_LENGTH bytes long.
+		 */
+		public byte[] digest();
+	}
+	
+	/**
+	 * Returns the name the repository config refers to this hasher by.
+	 * @return The name of the hasher.
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Start hashing a new stream of bytes.
+	 * @return Empty digest.
+	 */
+	public abstract Digest newDigest();
+	
+	/**
+	 * Hash the contents of a file.
+	 * The file is read through a FileChannel, large files are memory mapped
+	 * a window at a time, smaller ones read into a direct buffer reused by the calling thread.
+	 * @param file File to hash.
+	 * @return Id of the file's contents.
+	 * @throws IOException
+	 */
+	public ContentId hash(Path file) throws IOException {
+		return this.hash(file, null);
+	}
+	
+	/**
+	 * Hash the contents of a file, writing every byte read to a channel as it goes,
+	 * so the file can be copied and hashed while only being read once.
+	 * The file is read the same way as by hash(Path).
+	 * @param file File to hash.
+	 * @param copy Channel to write the file's contents to, or null to only hash it.
+	 * @return Id of the file's contents, which is the id of everything written to copy.
+	 * @throws IOException
+	 */
+	public ContentId hash(Path file, WritableByteChannel copy) throws IOException {
+		Digest digest = newDigest();
+		
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = fc.size();
+			
+			if(size >= MAP_THRESHOLD) {
+				for(long pos = 0; pos < size; pos += MAP_WINDOW) {
+					MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+					update(digest, window, copy);
+				}
+			}
+			else {
+				ByteBuffer buf = readBuffers.get();
+				buf.clear();
+				while(fc.read(buf) != -1) {
+					buf.flip();
+					update(digest, buf, copy);
+					buf.clear();
+				}
+			}
+		}
+		
+		return ContentId.fromBytes(digest.digest());
+	}
+	
+	private static void update(Digest digest, ByteBuffer buf, WritableByteChannel copy) throws IOException {
+		if(copy == null) {
+			digest.update(buf);
+			return;
+		}
+		
+		// The digest consumes the buffer, so it gets a view of the same bytes.
+		digest.update(buf.duplicate());
+		while(buf.hasRemaining()) {
+			copy.write(buf);
+		}
+	}
+	
+	/**
+	 * Hash an array of bytes.
+	 * @param b Bytes to hash.
+	 * @return Id of the bytes.
+	 */
+	public ContentId hash(byte[] b) {
+		Digest digest = newDigest();
+		digest.update(b, 0, b.length);
+		return ContentId.fromBytes(digest.digest());
+	}
+}
@@ -0,0 +1,47 @@
+package org.peak15.GVCLib.hashers;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.peak15.GVCLib.ContentId;
+
+/**
+ * Hashes everything written through it with a ContentHasher.
+ * Works like com.twmacinta.util.MD5OutputStream, but with whichever hasher the repository uses.
+ */
+public class HashingOutputStream extends FilterOutputStream {
+	private ContentHasher.Digest digest;
+	private byte[] one = new byte[1];
+	
+	/**
+	 * Create a HashingOutputStream.
+	 * @param out Stream to write to.
+	 * @param hasher Hasher to hash the written bytes with.
+	 */
+	public HashingOutputStream(OutputStream out, ContentHasher hasher) {
+		super(out);
+		this.digest = hasher.newDigest();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		this.one[0] = (byte) b;
+		this.digest.update(this.one, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		this.digest.update(b, off, len);
+	}
+	
+	/**
+	 * Finish the hash. Nothing more should be written afterwards.
+	 * @return Hash of every byte written.
+	 */
+	public ContentId getHash() {
+		return ContentId.fromBytes(this.digest.digest());
+	}
+}
@@ -0,0 +1,40 @@
+package org.peak15.GVCLib.hashers;
+
+import java.nio.ByteBuffer;
+
+import com.twmacinta.util.MD5;
+
+/**
+ * MD5, the original (and default) GVC hash.
+ */
+public class MD5Hasher extends ContentHasher {
+	
+	private static final String name = "md5";
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public Digest newDigest() {
+		final MD5 md5 = new MD5();
+		
+		return new Digest() {
+			@Override
+			public void update(byte[] b, int off, int len) {
+				md5.Update(b, off, len);
+			}
+			
+			@Override
+			public void update(ByteBuffer buf) {
+				md5.Update(buf);
+			}
+			
+			@Override
+			public byte[] digest() {
+				return md5.Final();
+			}
+		};
+	}
+}
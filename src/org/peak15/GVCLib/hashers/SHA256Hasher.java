@@ -0,0 +1,48 @@
+package org.peak15.GVCLib.hashers;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 from the JDK's MessageDigest, truncated to 128 bits so its hashes
+ * are the same size as every other hasher's.
+ */
+public class SHA256Hasher extends ContentHasher {
+	
+	private static final String name = "sha256";
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public Digest newDigest() {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE is required to provide SHA-256.
+			throw new IllegalStateException(e);
+		}
+		
+		return new Digest() {
+			@Override
+			public void update(byte[] b, int off, int len) {
+				md.update(b, off, len);
+			}
+			
+			@Override
+			public void update(ByteBuffer buf) {
+				md.update(buf);
+			}
+			
+			@Override
+			public byte[] digest() {
+				return Arrays.copyOf(md.digest(), HASH_LENGTH);
+			}
+		};
+	}
+}
@@ -0,0 +1,362 @@
+package org.peak15.GVCLib.hashers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XXH3 128 bit (seed 0, default secret), a pure Java port of the xxHash reference.
+ * It is not a cryptographic hash, so it should only be used for repositories whose
+ * contents are trusted, but it hashes several times faster than MD5.
+ * Hashes are written in xxHash's canonical (big endian, high half first) form,
+ * so they match the output of xxh128sum.
+ */
+public class XXH128Hasher extends ContentHasher {
+	
+	private static final String name = "xxh128";
+	
+	private static final long PRIME32_1 = 0x9E3779B1L;
+	private static final long PRIME32_2 = 0x85EBCA77L;
+	private static final long PRIME32_3 = 0xC2B2AE3DL;
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+	private static final long PRIME_MX1 = 0x165667919E3779F9L;
+	private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+	
+	private static final int STRIPE_LEN = 64;
+	private static final int SECRET_SIZE = 192;
+	private static final int STRIPES_PER_BLOCK = (SECRET_SIZE - STRIPE_LEN) / 8;
+	private static final int MIDSIZE_MAX = 240;
+	private static final int BUFFER_SIZE = 256;
+	
+	private static final byte[] kSecret = {
+		(byte) 0xb8, (byte) 0xfe, (byte) 0x6c, (byte) 0x39, (byte) 0x23, (byte) 0xa4, (byte) 0x4b, (byte) 0xbe,
+		(byte) 0x7c, (byte) 0x01, (byte) 0x81, (byte) 0x2c, (byte) 0xf7, (byte) 0x21, (byte) 0xad, (byte) 0x1c,
+		(byte) 0xde, (byte) 0xd4, (byte) 0x6d, (byte) 0xe9, (byte) 0x83, (byte) 0x90, (byte) 0x97, (byte) 0xdb,
+		(byte) 0x72, (byte) 0x40, (byte) 0xa4, (byte) 0xa4, (byte) 0xb7, (byte) 0xb3, (byte) 0x67, (byte) 0x1f,
+		(byte) 0xcb, (byte) 0x79, (byte) 0xe6, (byte) 0x4e, (byte) 0xcc, (byte) 0xc0, (byte) 0xe5, (byte) 0x78,
+		(byte) 0x82, (byte) 0x5a, (byte) 0xd0, (byte) 0x7d, (byte) 0xcc, (byte) 0xff, (byte) 0x72, (byte) 0x21,
+		(byte) 0xb8, (byte) 0x08, (byte) 0x46, (byte) 0x74, (byte) 0xf7, (byte) 0x43, (byte) 0x24, (byte) 0x8e,
+		(byte) 0xe0, (byte) 0x35, (byte) 0x90, (byte) 0xe6, (byte) 0x81, (byte) 0x3a, (byte) 0x26, (byte) 0x4c,
+		(byte) 0x3c, (byte) 0x28, (byte) 0x52, (byte) 0xbb, (byte) 0x91, (byte) 0xc3, (byte) 0x00, (byte) 0xcb,
+		(byte) 0x88, (byte) 0xd0, (byte) 0x65, (byte) 0x8b, (byte) 0x1b, (byte) 0x53, (byte) 0x2e, (byte) 0xa3,
+		(byte) 0x71, (byte) 0x64, (byte) 0x48, (byte) 0x97, (byte) 0xa2, (byte) 0x0d, (byte) 0xf9, (byte) 0x4e,
+		(byte) 0x38, (byte) 0x19, (byte) 0xef, (byte) 0x46, (byte) 0xa9, (byte) 0xde, (byte) 0xac, (byte) 0xd8,
+		(byte) 0xa8, (byte) 0xfa, (byte) 0x76, (byte) 0x3f, (byte) 0xe3, (byte) 0x9c, (byte) 0x34, (byte) 0x3f,
+		(byte) 0xf9, (byte) 0xdc, (byte) 0xbb, (byte) 0xc7, (byte) 0xc7, (byte) 0x0b, (byte) 0x4f, (byte) 0x1d,
+		(byte) 0x8a, (byte) 0x51, (byte) 0xe0, (byte) 0x4b, (byte) 0xcd, (byte) 0xb4, (byte) 0x59, (byte) 0x31,
+		(byte) 0xc8, (byte) 0x9f, (byte) 0x7e, (byte) 0xc9, (byte) 0xd9, (byte) 0x78, (byte) 0x73, (byte) 0x64,
+		(byte) 0xea, (byte) 0xc5, (byte) 0xac, (byte) 0x83, (byte) 0x34, (byte) 0xd3, (byte) 0xeb, (byte) 0xc3,
+		(byte) 0xc5, (byte) 0x81, (byte) 0xa0, (byte) 0xff, (byte) 0xfa, (byte) 0x13, (byte) 0x63, (byte) 0xeb,
+		(byte) 0x17, (byte) 0x0d, (byte) 0xdd, (byte) 0x51, (byte) 0xb7, (byte) 0xf0, (byte) 0xda, (byte) 0x49,
+		(byte) 0xd3, (byte) 0x16, (byte) 0x55, (byte) 0x26, (byte) 0x29, (byte) 0xd4, (byte) 0x68, (byte) 0x9e,
+		(byte) 0x2b, (byte) 0x16, (byte) 0xbe, (byte) 0x58, (byte) 0x7d, (byte) 0x47, (byte) 0xa1, (byte) 0xfc,
+		(byte) 0x8f, (byte) 0xf8, (byte) 0xb8, (byte) 0xd1, (byte) 0x7a, (byte) 0xd0, (byte) 0x31, (byte) 0xce,
+		(byte) 0x45, (byte) 0xcb, (byte) 0x3a, (byte) 0x8f, (byte) 0x95, (byte) 0x16, (byte) 0x04, (byte) 0x28,
+		(byte) 0xaf, (byte) 0xd7, (byte) 0xfb, (byte) 0xca, (byte) 0xbb, (byte) 0x4b, (byte) 0x40, (byte) 0x7e,
+	};
+	
+	// Only ever read with absolute gets, so it is safe to share between threads.
+	private static final ByteBuffer secret = ByteBuffer.wrap(kSecret).order(ByteOrder.LITTLE_ENDIAN);
+	
+	// The secret as 64 bit words, for the stripe loop whose reads are all aligned.
+	private static final long[] secretWords = new long[SECRET_SIZE / 8];
+	static {
+		for(int i = 0; i < secretWords.length; i++) {
+			secretWords[i] = secret.getLong(i * 8);
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public Digest newDigest() {
+		return new XXH3Digest();
+	}
+	
+	/**
+	 * Streaming XXH3 128 state.
+	 * Input is consumed a stripe at a time, but the final byte is always held back
+	 * in the buffer so digest() can treat the last stripe specially, as the reference does.
+	 */
+	private static class XXH3Digest implements Digest {
+		private long[] acc = {
+				PRIME32_3, PRIME64_1, PRIME64_2, PRIME64_3,
+				PRIME64_4, PRIME32_2, PRIME64_5, PRIME32_1 };
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private ByteBuffer bufferLE = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+		private int bufferedSize = 0;
+		private int stripesSoFar = 0;
+		private long totalLen = 0;
+		
+		@Override
+		public void update(byte[] b, int off, int len) {
+			update(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override
+		public void update(ByteBuffer buf) {
+			ByteBuffer in = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(buf.limit());
+			
+			int len = in.remaining();
+			this.totalLen += len;
+			
+			// Everything fits in the buffer, wait for more.
+			if(len <= BUFFER_SIZE - this.bufferedSize) {
+				in.get(this.buffer, this.bufferedSize, len);
+				this.bufferedSize += len;
+				return;
+			}
+			
+			// Top off and consume the buffer.
+			if(this.bufferedSize > 0) {
+				in.get(this.buffer, this.bufferedSize, BUFFER_SIZE - this.bufferedSize);
+				this.stripesSoFar = accumulate(this.acc, this.bufferLE, 0, BUFFER_SIZE / STRIPE_LEN, this.stripesSoFar);
+				this.bufferedSize = 0;
+			}
+			
+			// Consume straight from the input, keeping back at least one byte.
+			int pos = in.position();
+			int remaining = in.limit() - pos;
+			if(remaining > BUFFER_SIZE) {
+				int stripes = (remaining - 1) / STRIPE_LEN;
+				this.stripesSoFar = accumulate(this.acc, in, pos, stripes, this.stripesSoFar);
+				pos += stripes * STRIPE_LEN;
+				
+				// Remember the last consumed stripe, digest() may need part of it.
+				in.position(pos - STRIPE_LEN);
+				in.get(this.buffer, BUFFER_SIZE - STRIPE_LEN, STRIPE_LEN);
+			}
+			
+			in.position(pos);
+			this.bufferedSize = in.remaining();
+			in.get(this.buffer, 0, this.bufferedSize);
+		}
+		
+		@Override
+		public byte[] digest() {
+			if(this.totalLen <= MIDSIZE_MAX) {
+				return hashShort(this.bufferLE, 0, (int) this.totalLen);
+			}
+			
+			long[] acc = this.acc.clone();
+			ByteBuffer last;
+			int lastOff;
+			
+			if(this.bufferedSize >= STRIPE_LEN) {
+				int stripes = (this.bufferedSize - 1) / STRIPE_LEN;
+				accumulate(acc, this.bufferLE, 0, stripes, this.stripesSoFar);
+				last = this.bufferLE;
+				lastOff = this.bufferedSize - STRIPE_LEN;
+			}
+			else {
+				// The last stripe straddles the previously consumed input.
+				byte[] lastStripe = new byte[STRIPE_LEN];
+				int catchup = STRIPE_LEN - this.bufferedSize;
+				System.arraycopy(this.buffer, BUFFER_SIZE - catchup, lastStripe, 0, catchup);
+				System.arraycopy(this.buffer, 0, lastStripe, catchup, this.bufferedSize);
+				last = ByteBuffer.wrap(lastStripe).order(ByteOrder.LITTLE_ENDIAN);
+				lastOff = 0;
+			}
+			
+			accumulateLast(acc, last, lastOff);
+			
+			long low = mergeAccs(acc, 11, this.totalLen * PRIME64_1);
+			long high = mergeAccs(acc, SECRET_SIZE - STRIPE_LEN - 11, ~(this.totalLen * PRIME64_2));
+			return canonical(high, low);
+		}
+	}
+	
+	private static int accumulate(long[] acc, ByteBuffer in, int off, int stripes, int stripesSoFar) {
+		for(int s = 0; s < stripes; s++, off += STRIPE_LEN) {
+			int k = stripesSoFar;
+			for(int i = 0; i < 8; i++) {
+				long data = in.getLong(off + i * 8);
+				long key = data ^ secretWords[k + i];
+				acc[i ^ 1] += data;
+				acc[i] += (key & 0xFFFFFFFFL) * (key >>> 32);
+			}
+			
+			if(++stripesSoFar == STRIPES_PER_BLOCK) {
+				scramble(acc);
+				stripesSoFar = 0;
+			}
+		}
+		return stripesSoFar;
+	}
+	
+	private static void accumulateLast(long[] acc, ByteBuffer in, int off) {
+		int secretOff = SECRET_SIZE - STRIPE_LEN - 7;
+		for(int i = 0; i < 8; i++) {
+			long data = in.getLong(off + i * 8);
+			long key = data ^ secret.getLong(secretOff + i * 8);
+			acc[i ^ 1] += data;
+			acc[i] += (key & 0xFFFFFFFFL) * (key >>> 32);
+		}
+	}
+	
+	private static void scramble(long[] acc) {
+		int k = (SECRET_SIZE - STRIPE_LEN) / 8;
+		for(int i = 0; i < 8; i++) {
+			long a = acc[i];
+			a ^= a >>> 47;
+			a ^= secretWords[k + i];
+			a *= PRIME32_1;
+			acc[i] = a;
+		}
+	}
+	
+	private static long mergeAccs(long[] acc, int secretOff, long start) {
+		long result = start;
+		for(int i = 0; i < 4; i++) {
+			result += mulFold(acc[2 * i] ^ secret.getLong(secretOff + 16 * i),
+					acc[2 * i + 1] ^ secret.getLong(secretOff + 16 * i + 8));
+		}
+		return avalanche(result);
+	}
+	
+	/**
+	 * Hash inputs of at most MIDSIZE_MAX bytes, which XXH3 handles without stripes.
+	 */
+	private static byte[] hashShort(ByteBuffer in, int off, int len) {
+		long low, high;
+		
+		if(len == 0) {
+			low = xxh64Avalanche(secret.getLong(64) ^ secret.getLong(72));
+			high = xxh64Avalanche(secret.getLong(80) ^ secret.getLong(88));
+		}
+		else if(len <= 3) {
+			int c1 = in.get(off) & 0xFF;
+			int c2 = in.get(off + (len >> 1)) & 0xFF;
+			int c3 = in.get(off + len - 1) & 0xFF;
+			int combinedl = (c1 << 16) | (c2 << 24) | c3 | (len << 8);
+			int combinedh = Integer.rotateLeft(Integer.reverseBytes(combinedl), 13);
+			long bitflipl = (secret.getInt(0) ^ secret.getInt(4)) & 0xFFFFFFFFL;
+			long bitfliph = (secret.getInt(8) ^ secret.getInt(12)) & 0xFFFFFFFFL;
+			low = xxh64Avalanche((combinedl & 0xFFFFFFFFL) ^ bitflipl);
+			high = xxh64Avalanche((combinedh & 0xFFFFFFFFL) ^ bitfliph);
+		}
+		else if(len <= 8) {
+			long inputLo = in.getInt(off) & 0xFFFFFFFFL;
+			long inputHi = in.getInt(off + len - 4) & 0xFFFFFFFFL;
+			long keyed = (inputLo + (inputHi << 32)) ^ (secret.getLong(16) ^ secret.getLong(24));
+			long mul = PRIME64_1 + ((long) len << 2);
+			low = keyed * mul;
+			high = multiplyHigh(keyed, mul);
+			high += low << 1;
+			low ^= high >>> 3;
+			low ^= low >>> 35;
+			low *= PRIME_MX2;
+			low ^= low >>> 28;
+			high = avalanche(high);
+		}
+		else if(len <= 16) {
+			long bitflipl = secret.getLong(32) ^ secret.getLong(40);
+			long bitfliph = secret.getLong(48) ^ secret.getLong(56);
+			long inputLo = in.getLong(off);
+			long inputHi = in.getLong(off + len - 8);
+			long keyed = inputLo ^ inputHi ^ bitflipl;
+			long mLo = keyed * PRIME64_1;
+			long mHi = multiplyHigh(keyed, PRIME64_1);
+			mLo += (long) (len - 1) << 54;
+			inputHi ^= bitfliph;
+			mHi += inputHi + (inputHi & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+			mLo ^= Long.reverseBytes(mHi);
+			low = mLo * PRIME64_2;
+			high = multiplyHigh(mLo, PRIME64_2) + mHi * PRIME64_2;
+			low = avalanche(low);
+			high = avalanche(high);
+		}
+		else {
+			long[] acc = { len * PRIME64_1, 0 };
+			
+			if(len <= 128) {
+				if(len > 32) {
+					if(len > 64) {
+						if(len > 96) {
+							mix32B(acc, in, off + 48, off + len - 64, 96);
+						}
+						mix32B(acc, in, off + 32, off + len - 48, 64);
+					}
+					mix32B(acc, in, off + 16, off + len - 32, 32);
+				}
+				mix32B(acc, in, off, off + len - 16, 0);
+			}
+			else {
+				int rounds = len / 32;
+				for(int i = 0; i < 4; i++) {
+					mix32B(acc, in, off + 32 * i, off + 32 * i + 16, 32 * i);
+				}
+				acc[0] = avalanche(acc[0]);
+				acc[1] = avalanche(acc[1]);
+				for(int i = 4; i < rounds; i++) {
+					mix32B(acc, in, off + 32 * i, off + 32 * i + 16, 3 + 32 * (i - 4));
+				}
+				mix32B(acc, in, off + len - 16, off + len - 32, 136 - 17 - 16);
+			}
+			
+			low = acc[0] + acc[1];
+			high = acc[0] * PRIME64_1 + acc[1] * PRIME64_4 + len * PRIME64_2;
+			low = avalanche(low);
+			high = -avalanche(high);
+		}
+		
+		return canonical(high, low);
+	}
+	
+	private static void mix32B(long[] acc, ByteBuffer in, int off1, int off2, int secretOff) {
+		acc[0] += mix16B(in, off1, secretOff);
+		acc[0] ^= in.getLong(off2) + in.getLong(off2 + 8);
+		acc[1] += mix16B(in, off2, secretOff + 16);
+		acc[1] ^= in.getLong(off1) + in.getLong(off1 + 8);
+	}
+	
+	private static long mix16B(ByteBuffer in, int off, int secretOff) {
+		return mulFold(in.getLong(off) ^ secret.getLong(secretOff),
+				in.getLong(off + 8) ^ secret.getLong(secretOff + 8));
+	}
+	
+	private static long mulFold(long a, long b) {
+		return (a * b) ^ multiplyHigh(a, b);
+	}
+	
+	/**
+	 * High 64 bits of the unsigned 128 bit product of a and b.
+	 */
+	private static long multiplyHigh(long a, long b) {
+		long aLo = a & 0xFFFFFFFFL, aHi = a >>> 32;
+		long bLo = b & 0xFFFFFFFFL, bHi = b >>> 32;
+		long loLo = aLo * bLo;
+		long hiLo = aHi * bLo;
+		long loHi = aLo * bHi;
+		long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+		return (hiLo >>> 32) + (cross >>> 32) + aHi * bHi;
+	}
+	
+	private static long avalanche(long h) {
+		h ^= h >>> 37;
+		h *= PRIME_MX1;
+		return h ^ (h >>> 32);
+	}
+	
+	private static long xxh64Avalanche(long h) {
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		return h ^ (h >>> 32);
+	}
+	
+	private static byte[] canonical(long high, long low) {
+		ByteBuffer out = ByteBuffer.allocate(HASH_LENGTH);
+		out.putLong(high);
+		out.putLong(low);
+		return out.array();
+	}
+}